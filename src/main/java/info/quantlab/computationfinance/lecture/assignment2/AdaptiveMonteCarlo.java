@@ -0,0 +1,74 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+/**
+ * Runs a MonteCarloTask until the standard error of the value, and optionally of its derivatives, falls below a
+ * target, instead of for a fixed number of paths.
+ *
+ * Paths are valued in blocks of a given size, with the random number substreams of ShardedMonteCarlo, and in
+ * batches of blocks doubling in size: after each batch, the running MonteCarloAccumulator is checked against the
+ * targets. The number of paths valued is thus at most twice the number needed, and the result is the same as that of
+ * a ShardedMonteCarlo run with the same seed and block size over the same number of paths.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class AdaptiveMonteCarlo {
+
+	private final MonteCarloTask task;
+	private final long seed;
+	private final int blockSize;
+	private final double[] parameters;
+
+	/**
+	 * @param task The valuation.
+	 * @param seed The seed from which the substreams of all blocks are derived.
+	 * @param blockSize The number of paths of each block, which is also the size of the first batch.
+	 * @param parameters The values of the parameters passed to the task.
+	 */
+	public AdaptiveMonteCarlo(MonteCarloTask task, long seed, int blockSize, double... parameters) {
+		this.task = task;
+		this.seed = seed;
+		this.blockSize = blockSize;
+		this.parameters = parameters.clone();
+	}
+
+	/**
+	 * Runs until the standard error of the value is at most targetError, or maximumNumberOfPaths paths have been valued.
+	 * @param targetError The target standard error of the value, see MonteCarloAccumulator.getStandardError().
+	 * @param maximumNumberOfPaths The budget of paths.
+	 * @return The results, with the number of paths used.
+	 */
+	public MonteCarloAccumulator run(double targetError, long maximumNumberOfPaths) {
+		return run(targetError, Double.POSITIVE_INFINITY, maximumNumberOfPaths);
+	}
+
+	/**
+	 * Runs until the standard errors of the value and of its derivatives with respect to all parameters are at most
+	 * their targets, or maximumNumberOfPaths paths have been valued.
+	 * @param targetError The target standard error of the value, see MonteCarloAccumulator.getStandardError().
+	 * @param targetDerivativeError The target standard error of the derivatives, e.g. the AAD delta.
+	 * @param maximumNumberOfPaths The budget of paths.
+	 * @return The results, with the number of paths used.
+	 */
+	public MonteCarloAccumulator run(double targetError, double targetDerivativeError, long maximumNumberOfPaths) {
+		MonteCarloAccumulator accumulator = new MonteCarloAccumulator(parameters.length);
+		long numberOfBlocks = (maximumNumberOfPaths + blockSize - 1) / blockSize;
+
+		for (long block = 0; block < numberOfBlocks; ) {
+			for (long lastBlock = Math.min(Math.max(2 * block, 1), numberOfBlocks); block < lastBlock; block++)
+				ShardedMonteCarlo.runBlock(task, accumulator, seed, maximumNumberOfPaths, blockSize, block, parameters);
+			if (isConverged(accumulator, targetError, targetDerivativeError))
+				break;
+		}
+		return accumulator;
+	}
+
+	private static boolean isConverged(MonteCarloAccumulator accumulator, double targetError, double targetDerivativeError) {
+		if (accumulator.getStandardError() > targetError)
+			return false;
+		for (int i = 0; i < accumulator.getNumberOfParameters(); i++)
+			if (accumulator.getDerivativeStandardError(i) > targetDerivativeError)
+				return false;
+		return true;
+	}
+}
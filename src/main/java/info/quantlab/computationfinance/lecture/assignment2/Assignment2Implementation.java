@@ -1,5 +1,10 @@
 package info.quantlab.computationfinance.lecture.assignment2;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
 import info.quantlab.computationfinance.lecture.Assignment2;
 import net.finmath.aadexperiments.randomvalue.RandomValue;
 import net.finmath.aadexperiments.randomvalue.RandomValueDifferentiable;
@@ -9,14 +14,67 @@ import net.finmath.aadexperiments.randomvalue.RandomValueDifferentiable;
  */
 public class Assignment2Implementation implements Assignment2 {
 
+	/**
+	 * Maximum number of results kept by the value and sensitivities methods. Changes, also from other threads, apply
+	 * to the results that follow.
+	 */
+	public static volatile int sensitivitiesCacheSize = 64;
+
+	/**
+	 * Product and ids of the inputs of a valuation, together with the global settings it depends on. An in-place
+	 * operation assigns a new id to the random variable, such that a modified input does not hit the cache.
+	 */
+	private static final class ValuationKey {
+		private final String product;
+		private final long[] ids;
+		private final long hFactor;
+		private final RandomVariable.Precision precision = RandomVariable.precision;
+
+		ValuationKey(String product, RandomValue... inputs) {
+			this.product = product;
+			this.hFactor = Double.doubleToLongBits(RandomVariable.hFactor);
+			ids = new long[inputs.length];
+			for (int i = 0; i < inputs.length; i++)
+				ids[i] = ((RandomVariable)inputs[i]).id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ValuationKey))
+				return false;
+			ValuationKey key = (ValuationKey)obj;
+			return product.equals(key.product) && hFactor == key.hFactor && precision == key.precision && Arrays.equals(ids, key.ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * product.hashCode() + Arrays.hashCode(ids);
+		}
+	}
+
+	/**
+	 * Least recently used results, bounded by Assignment2Implementation.sensitivitiesCacheSize. Keys hold ids only,
+	 * results hold plain values only, such that the cache retains neither inputs nor graphs. The pathwise derivative
+	 * with respect to a stochastic input is retained, though, i.e. up to one vector of the size of the Brownian motion
+	 * per result; the cache may be disabled by setting its size to 0.
+	 */
+	private static final Map<ValuationKey, ValueAndSensitivities> sensitivitiesCache = new LinkedHashMap<>(16, .75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ValuationKey, ValueAndSensitivities> eldest) {
+			return size() > sensitivitiesCacheSize;
+		}
+	};
+
 	@Override
 	public RandomValue getRandomValueFromArray(double[] values) {
-		return RandomVariable.factory().fromArray(values); // these are always differentiable
+		return RandomVariable.factory(false).fromArray(values); // plain values, operations on them are not recorded
 	}
 
 	@Override
 	public RandomValueDifferentiable getRandomDifferentiableValueFromArray(double[] values) {
-		return RandomVariable.factory().fromArray(values);
+		return (RandomVariableDifferentiable)RandomVariable.factory().fromArray(values);
 	}
 
 	@Override
@@ -24,13 +82,20 @@ public class Assignment2Implementation implements Assignment2 {
 			RandomValue volatility, RandomValue brownianMotionUponMaturity, RandomValue strike, RandomValue maturity,
 			RandomValue periodLength) {
 
-		RandomValue forwardRateAtMaturity = brownianMotionUponMaturity.mult(volatility)
-				.sub(volatility.squared().mult(.5).mult(maturity))
-				.exp().mult(forwardRate);
+		RandomValue diffusion = brownianMotionUponMaturity.mult(volatility);
+		RandomValue variance = volatility.squared();
+		RandomValue halfVariance = variance.mult(.5);
+		RandomValue drift = halfVariance.mult(maturity);
+		RandomValue logGrowth = diffusion.sub(drift);
+		RandomValue growth = logGrowth.exp();
+		RandomValue forwardRateAtMaturity = growth.mult(forwardRate);
 		RandomValue digitalCapletPayoff = payoffUnit.mult(periodLength);
 		RandomValue condition  = forwardRateAtMaturity.sub(strike);
+		RandomValue payoff = condition.choose(digitalCapletPayoff, forwardRate.getFactory().zero());
+		RandomValue value = payoff.expectation();
 
-		return condition.choose(digitalCapletPayoff, RandomVariable.factory().zero()).expectation();
+		disposeUnlessRecorded(variance, halfVariance, drift, diffusion, logGrowth, growth, forwardRateAtMaturity, digitalCapletPayoff, condition, payoff);
+		return value;
 	}
 
 	@Override
@@ -38,35 +103,144 @@ public class Assignment2Implementation implements Assignment2 {
 			RandomValue volatility, RandomValue brownianMotionUponMaturity, RandomValue strike, RandomValue maturity,
 			RandomValue periodLength) {
 
-		RandomValue value = getMonteCarloBlackModelValueOfDigitalCaplet(forwardRate, payoffUnit, volatility, brownianMotionUponMaturity,
-		                                                                strike, maturity, periodLength);
-
-		return ((RandomValueDifferentiable)value).getDerivativeWithRespectTo((RandomVariableDifferentiable)forwardRate);
+		try (RandomVariableTape tape = RandomVariableTape.open(true)) {
+			RandomVariableDifferentiable recordedForwardRate = getRecording(forwardRate);
+			RandomValue value = getMonteCarloBlackModelValueOfDigitalCaplet(recordedForwardRate, payoffUnit, volatility, brownianMotionUponMaturity,
+			                                                                strike, maturity, periodLength);
 
+			RandomValue delta = ((RandomValueDifferentiable)value).getDerivativeWithRespectTo(recordedForwardRate);
+			tape.keep((RandomVariable)delta);
+			return delta;
+		}
 	}
 
 	@Override
 	public RandomValue getMonteCarloBlackModelValueOfForwardRateInArrears(RandomValue forwardRate, RandomValue payoffUnit,
 			RandomValue volatility, RandomValue brownianMotionUponMaturity, RandomValue maturity, RandomValue periodLength) {
 
-		RandomValue forwardRateAtMaturity = brownianMotionUponMaturity.mult(volatility)
-				.sub(volatility.squared().mult(.5).mult(maturity))
-				.exp().mult(forwardRate);
-		RandomValue equivalentPayoffAtT2 = forwardRateAtMaturity.mult(periodLength).mult(RandomVariable.factory().one().add(forwardRateAtMaturity.mult(periodLength)));
-		RandomValue value = equivalentPayoffAtT2.mult(payoffUnit).expectation();
-
+		RandomValue diffusion = brownianMotionUponMaturity.mult(volatility);
+		RandomValue variance = volatility.squared();
+		RandomValue halfVariance = variance.mult(.5);
+		RandomValue drift = halfVariance.mult(maturity);
+		RandomValue logGrowth = diffusion.sub(drift);
+		RandomValue growth = logGrowth.exp();
+		RandomValue forwardRateAtMaturity = growth.mult(forwardRate);
+		RandomValue accrual = forwardRateAtMaturity.mult(periodLength);
+		RandomValue discountFactorFromT2 = forwardRate.getFactory().one().add(accrual);
+		RandomValue equivalentPayoffAtT2 = accrual.mult(discountFactorFromT2);
+		RandomValue payoff = equivalentPayoffAtT2.mult(payoffUnit);
+		RandomValue value = payoff.expectation();
+
+		disposeUnlessRecorded(variance, halfVariance, drift, diffusion, logGrowth, growth, forwardRateAtMaturity, accrual, discountFactorFromT2,
+				equivalentPayoffAtT2, payoff);
 		return value;
-
 	}
 
 	@Override
 	public 	RandomValue getMonteCarloBlackModelDeltaOfForwardRateInArrears(RandomValue forwardRate, RandomValue payoffUnit,
 			RandomValue volatility, RandomValue brownianMotionUponMaturity, RandomValue maturity, RandomValue periodLength) {
 
-		RandomValueDifferentiable value = (RandomValueDifferentiable) getMonteCarloBlackModelValueOfForwardRateInArrears(forwardRate,
-				payoffUnit, volatility, brownianMotionUponMaturity, maturity, periodLength);
+		try (RandomVariableTape tape = RandomVariableTape.open(true)) {
+			RandomVariableDifferentiable recordedForwardRate = getRecording(forwardRate);
+			RandomValueDifferentiable value = (RandomValueDifferentiable) getMonteCarloBlackModelValueOfForwardRateInArrears(recordedForwardRate,
+					payoffUnit, volatility, brownianMotionUponMaturity, maturity, periodLength);
+
+			RandomValue delta = value.getDerivativeWithRespectTo(recordedForwardRate);
+			tape.keep((RandomVariable)delta);
+			return delta;
+		}
+	}
+
+	/**
+	 * Value of the digital caplet together with its sensitivities to every input, from one valuation and one reverse
+	 * sweep. Results are cached by the identities of the inputs, such that repeated calls on the same inputs cost
+	 * nothing.
+	 */
+	public ValueAndSensitivities getMonteCarloBlackModelValueAndSensitivitiesOfDigitalCaplet(RandomValue forwardRate, RandomValue payoffUnit,
+			RandomValue volatility, RandomValue brownianMotionUponMaturity, RandomValue strike, RandomValue maturity,
+			RandomValue periodLength) {
+
+		return getValueAndSensitivities("DigitalCaplet", arguments -> getMonteCarloBlackModelValueOfDigitalCaplet(
+				arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], arguments[5], arguments[6]),
+				forwardRate, payoffUnit, volatility, brownianMotionUponMaturity, strike, maturity, periodLength);
+	}
+
+	/**
+	 * Value of the forward rate in arrears together with its sensitivities to every input, from one valuation and one
+	 * reverse sweep. Results are cached by the identities of the inputs, such that repeated calls on the same inputs
+	 * cost nothing.
+	 */
+	public ValueAndSensitivities getMonteCarloBlackModelValueAndSensitivitiesOfForwardRateInArrears(RandomValue forwardRate, RandomValue payoffUnit,
+			RandomValue volatility, RandomValue brownianMotionUponMaturity, RandomValue maturity, RandomValue periodLength) {
+
+		return getValueAndSensitivities("ForwardRateInArrears", arguments -> getMonteCarloBlackModelValueOfForwardRateInArrears(
+				arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], arguments[5]),
+				forwardRate, payoffUnit, volatility, brownianMotionUponMaturity, maturity, periodLength);
+	}
+
+	/**
+	 * Values the product on a fresh recorded leaf per distinct input, such that the first derivative performs the
+	 * single reverse sweep and all others are lookups. The first input is the forward rate, the third the volatility.
+	 */
+	private static ValueAndSensitivities getValueAndSensitivities(String product, Function<RandomValue[], RandomValue> valuation, RandomValue... inputs) {
+		ValuationKey key = new ValuationKey(product, inputs);
+		synchronized (sensitivitiesCache) {
+			ValueAndSensitivities cached = sensitivitiesCache.get(key);
+			if (cached != null)
+				return cached;
+		}
+
+		Map<Long, RandomVariableDifferentiable> leaves = new LinkedHashMap<>();
+		RandomValue[] arguments = new RandomValue[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			RandomVariable input = (RandomVariable)inputs[i];
+			arguments[i] = leaves.computeIfAbsent(input.id,
+					id -> new RandomVariableDifferentiable(input.getValuesForRecording()));
+		}
+
+		RandomValueDifferentiable value = (RandomValueDifferentiable)valuation.apply(arguments);
+		Map<Long, double[]> sensitivities = new LinkedHashMap<>();
+		for (Map.Entry<Long, RandomVariableDifferentiable> leaf : leaves.entrySet())
+			sensitivities.put(leaf.getKey(), getPlainCopy(value.getDerivativeWithRespectTo(leaf.getValue())));
+
+		ValueAndSensitivities result = new ValueAndSensitivities(getPlainCopy(value), sensitivities, inputs[0], inputs[2]);
+		synchronized (sensitivitiesCache) {
+			sensitivitiesCache.put(key, result);
+		}
+		return result;
+	}
 
-		return value.getDerivativeWithRespectTo((RandomValueDifferentiable) forwardRate);
+	/*
+	 * Copies the values, which may be buffers of a recycling RandomVariableTape.
+	 */
+	private static double[] getPlainCopy(RandomValue x) {
+		return ((RandomVariable)x).getValues().clone();
+	}
+
+	/**
+	 * Returns the sample buffers of the intermediate results of a valuation to the SampleBufferPool, unless the result
+	 * still refers to them: recorded intermediates are nodes of its graph, and plain intermediates may be operands of
+	 * recorded operations, e.g. growth in growth.mult(forwardRate) for a differentiable forward rate only. The other
+	 * plain intermediates are referred to by nothing once the valuation has returned, such that repeated valuations
+	 * reuse their buffers. The delta pricers run in a recycling RandomVariableTape instead, which releases the recorded
+	 * intermediates and the adjoints once the derivative has been taken.
+	 */
+	private static void disposeUnlessRecorded(RandomValue... intermediates) {
+		for (RandomValue intermediate : intermediates) {
+			RandomVariable randomVariable = (RandomVariable)intermediate;
+			if (!randomVariable.recording && !randomVariable.recordedOperand && !randomVariable.sharedValues)
+				randomVariable.dispose();
+		}
+	}
 
+	/**
+	 * Returns x, if it is recorded for AAD, or else a recorded leaf sharing the values of x, such that sensitivities
+	 * can be computed also with respect to values of a non-recording factory.
+	 */
+	private static RandomVariableDifferentiable getRecording(RandomValue x) {
+		if (x instanceof RandomVariableDifferentiable)
+			return (RandomVariableDifferentiable)x;
+		else
+			return new RandomVariableDifferentiable(((RandomVariable)x).getValuesForRecording());
 	}
 }
@@ -0,0 +1,185 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Batch pricer for portfolios of digital caplets, built on Assignment2Implementation. Trades are streamed from a CSV
+ * source, priced in batches of CapletBatchPricer.batchSize trades in parallel against one shared sample of standard
+ * normals, and their value and delta with respect to the forward rate are streamed out in the order of the input,
+ * such that only one batch is held in memory at a time.
+ *
+ * Input lines have the columns id,forward,volatility,strike,maturity,periodLength,payoffUnit; empty lines, lines
+ * starting with # and a header line starting with id are skipped. Output lines have the columns id,value,delta.
+ *
+ * Usage: CapletBatchPricer trades.csv|- results.csv|- [numberOfPaths [seed]], where - denotes standard input or
+ * output. Progress and throughput are reported to standard error.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class CapletBatchPricer {
+
+	/**
+	 * Number of trades read, priced in parallel and written at once.
+	 */
+	public static volatile int batchSize = 256;
+
+	/**
+	 * Minimum number of milliseconds between two progress reports.
+	 */
+	public static volatile long progressInterval = 1000;
+
+	/**
+	 * A digital caplet, paying payoffUnit * periodLength if the forward rate fixed at maturity is at least strike.
+	 */
+	public static final class Trade {
+		public final String id;
+		public final double forward, volatility, strike, maturity, periodLength, payoffUnit;
+
+		public Trade(String id, double forward, double volatility, double strike, double maturity, double periodLength, double payoffUnit) {
+			this.id = id;
+			this.forward = forward;
+			this.volatility = volatility;
+			this.strike = strike;
+			this.maturity = maturity;
+			this.periodLength = periodLength;
+			this.payoffUnit = payoffUnit;
+		}
+
+		/**
+		 * Parses a line of the input.
+		 * @param line A line with the columns id,forward,volatility,strike,maturity,periodLength,payoffUnit.
+		 * @return The trade.
+		 */
+		public static Trade parse(String line) {
+			String[] columns = line.split(",");
+			if (columns.length != 7)
+				throw new IllegalArgumentException("Expected 7 columns, got " + columns.length + ": " + line);
+			double[] numbers = new double[6];
+			for (int i = 0; i < numbers.length; i++)
+				numbers[i] = Double.parseDouble(columns[i + 1].trim());
+			return new Trade(columns[0].trim(), numbers[0], numbers[1], numbers[2], numbers[3], numbers[4], numbers[5]);
+		}
+	}
+
+	private final Assignment2Implementation implementation = new Assignment2Implementation();
+	private final RandomVariable normals;
+
+	/**
+	 * Creates a pricer with its sample of standard normals.
+	 * @param numberOfPaths The number of paths.
+	 * @param seed The seed of the sample.
+	 */
+	public CapletBatchPricer(int numberOfPaths, long seed) {
+		Random random = new Random(seed);
+		double[] samples = new double[numberOfPaths];
+		for(int pathIndex=0; pathIndex<numberOfPaths; pathIndex++)
+			samples[pathIndex] = random.nextGaussian();
+		normals = RandomVariable.factory(false).fromArray(samples);
+	}
+
+	public int getNumberOfPaths() {
+		return normals.getValues().length;
+	}
+
+	/**
+	 * Prices a single trade. The graph is recorded on a recycling RandomVariableTape, such that the sample buffers of
+	 * one trade are reused by the next trade priced on the same thread.
+	 * @param trade The trade.
+	 * @return The value and the delta with respect to the forward rate.
+	 */
+	public double[] price(Trade trade) {
+		try (RandomVariableTape tape = RandomVariableTape.open(true)) {
+			RandomVariableFactory factory = RandomVariable.factory();
+			RandomVariableDifferentiable forwardRate = tape.input(factory.fromConstant(trade.forward));
+			RandomVariable maturity = factory.fromConstant(trade.maturity);
+
+			RandomVariableDifferentiable value = (RandomVariableDifferentiable)implementation.getMonteCarloBlackModelValueOfDigitalCaplet(
+					forwardRate, factory.fromConstant(trade.payoffUnit), factory.fromConstant(trade.volatility),
+					normals.mult(maturity.sqrt()), factory.fromConstant(trade.strike), maturity, factory.fromConstant(trade.periodLength));
+
+			return new double[] { value.asFloatingPoint(), ((RandomVariable)value.getDerivativeWithRespectTo(forwardRate)).asFloatingPoint() };
+		}
+	}
+
+	/**
+	 * Prices all trades of the input and writes their results to the output.
+	 * @param input The trades, one per line.
+	 * @param output Receives the results, one line per trade, in the order of the input.
+	 * @param progress Receives progress reports, or null.
+	 * @return The number of trades priced.
+	 * @throws IOException If reading or writing fails.
+	 */
+	public long run(BufferedReader input, Writer output, PrintStream progress) throws IOException {
+		long start = System.nanoTime(), lastReport = start, numberOfTrades = 0, lineNumber = 0;
+		List<Trade> batch = new ArrayList<>(batchSize);
+
+		output.write("id,value,delta\n");
+		String line;
+		do {
+			line = input.readLine();
+			if (line != null) {
+				lineNumber++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("#") || (lineNumber == 1 && trimmed.startsWith("id")))
+					continue;
+				try {
+					batch.add(Trade.parse(trimmed));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage(), e);
+				}
+				if (batch.size() < batchSize)
+					continue;
+			}
+
+			double[][] results = batch.parallelStream().map(this::price).toArray(double[][]::new);
+			for (int i = 0; i < results.length; i++)
+				output.write(batch.get(i).id + "," + results[i][0] + "," + results[i][1] + "\n");
+			numberOfTrades += batch.size();
+			batch.clear();
+
+			long now = System.nanoTime();
+			if (progress != null && (line == null || (now - lastReport) / 1000000 >= progressInterval)) {
+				progress.println(getThroughput(numberOfTrades, now - start));
+				lastReport = now;
+			}
+		} while (line != null);
+
+		output.flush();
+		return numberOfTrades;
+	}
+
+	private String getThroughput(long numberOfTrades, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1E9;
+		return String.format("%d trades in %.1f s, %.1f trades/s, %.3g paths/s", numberOfTrades, seconds,
+				numberOfTrades / seconds, (double)numberOfTrades * getNumberOfPaths() / seconds);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CapletBatchPricer trades.csv|- results.csv|- [numberOfPaths [seed]]");
+			System.exit(1);
+		}
+		int numberOfPaths = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 3413;
+
+		try (BufferedReader input = args[0].equals("-") ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+		                                                : Files.newBufferedReader(Paths.get(args[0]));
+		     Writer output = args[1].equals("-") ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+		                                         : Files.newBufferedWriter(Paths.get(args[1]))) {
+			new CapletBatchPricer(numberOfPaths, seed).run(input, output, System.err);
+		}
+	}
+}
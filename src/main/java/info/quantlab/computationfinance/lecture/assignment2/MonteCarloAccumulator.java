@@ -0,0 +1,197 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable state of a Monte Carlo valuation over a set of paths: the number of paths, the sums of the pathwise values
+ * and of their squares, and the sums of the pathwise derivatives with respect to the parameters and of their squares.
+ * Accumulators of disjoint sets of paths are merged by adding their sums, such that expectation, sample error and
+ * derivatives of the union are the same as if all paths had been valued at once.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class MonteCarloAccumulator {
+
+	/**
+	 * Leading token of an encoded accumulator, to be changed whenever the encoding changes.
+	 */
+	private static final String encodingVersion = "accumulator-v2";
+
+	private long numberOfPaths = 0;
+	private double sum = 0;
+	private double sumOfSquares = 0;
+	private final double[] derivativeSums;
+	private final double[] derivativeSumsOfSquares;
+
+	/**
+	 * Creates an empty accumulator.
+	 * @param numberOfParameters The number of parameters whose derivatives are accumulated.
+	 */
+	public MonteCarloAccumulator(int numberOfParameters) {
+		derivativeSums = new double[numberOfParameters];
+		derivativeSumsOfSquares = new double[numberOfParameters];
+	}
+
+	/**
+	 * Adds a block of paths.
+	 * @param numberOfPaths The number of paths of the block.
+	 * @param value The pathwise value.
+	 * @param derivatives The pathwise derivatives of value with respect to the parameters.
+	 * @return this
+	 */
+	public MonteCarloAccumulator add(int numberOfPaths, RandomVariable value, RandomVariable... derivatives) {
+		if (derivatives.length != derivativeSums.length)
+			throw new IllegalArgumentException("Expected " + derivativeSums.length + " derivatives, got " + derivatives.length + ".");
+
+		double[] values = value.getValues();
+		this.numberOfPaths += numberOfPaths;
+		sum += sum(values, numberOfPaths);
+		sumOfSquares += sumOfSquares(values, numberOfPaths);
+		for (int i = 0; i < derivatives.length; i++) {
+			double[] derivative = derivatives[i].getValues();
+			derivativeSums[i] += sum(derivative, numberOfPaths);
+			derivativeSumsOfSquares[i] += sumOfSquares(derivative, numberOfPaths);
+		}
+		return this;
+	}
+
+	private static double sum(double[] values, int numberOfPaths) {
+		return values.length == 1 ? values[0] * numberOfPaths : Arrays.stream(values).parallel().sum();
+	}
+
+	private static double sumOfSquares(double[] values, int numberOfPaths) {
+		return values.length == 1 ? values[0] * values[0] * numberOfPaths : Arrays.stream(values).parallel().map(a -> a * a).sum();
+	}
+
+	/**
+	 * Adds the paths of another accumulator, which must be disjoint from those of this one.
+	 * @param other Another accumulator of the same parameters.
+	 * @return this
+	 */
+	public MonteCarloAccumulator merge(MonteCarloAccumulator other) {
+		if (other.derivativeSums.length != derivativeSums.length)
+			throw new IllegalArgumentException("Accumulators of different parameters cannot be merged.");
+
+		numberOfPaths += other.numberOfPaths;
+		sum += other.sum;
+		sumOfSquares += other.sumOfSquares;
+		for (int i = 0; i < derivativeSums.length; i++) {
+			derivativeSums[i] += other.derivativeSums[i];
+			derivativeSumsOfSquares[i] += other.derivativeSumsOfSquares[i];
+		}
+		return this;
+	}
+
+	public long getNumberOfPaths() {
+		return numberOfPaths;
+	}
+
+	public int getNumberOfParameters() {
+		return derivativeSums.length;
+	}
+
+	/**
+	 * @return The expectation of the value, as a deterministic random variable.
+	 */
+	public RandomVariable expectation() {
+		return constant(sum / numberOfPaths);
+	}
+
+	/**
+	 * @return The biased variance of the value, as for RandomVariable.variance().
+	 */
+	public RandomVariable variance() {
+		return constant(variance(sum, sumOfSquares));
+	}
+
+	private double variance(double sum, double sumOfSquares) {
+		double mean = sum / numberOfPaths;
+		return Math.max(sumOfSquares / numberOfPaths - mean * mean, 0.);
+	}
+
+	/**
+	 * @return The sample error of the value, as for RandomVariable.sampleError().
+	 */
+	public RandomVariable sampleError() {
+		return constant(Math.sqrt(variance().asFloatingPoint()) / numberOfPaths);
+	}
+
+	/**
+	 * @return The standard error of the expectation, the standard deviation of the value divided by the square root
+	 * of the number of paths.
+	 */
+	public double getStandardError() {
+		return Math.sqrt(variance(sum, sumOfSquares) / numberOfPaths);
+	}
+
+	/**
+	 * @param parameterIndex The index of the parameter.
+	 * @return The derivative of the expectation of the value with respect to the parameter.
+	 */
+	public RandomVariable getDerivativeWithRespectTo(int parameterIndex) {
+		return constant(derivativeSums[parameterIndex] / numberOfPaths);
+	}
+
+	/**
+	 * @param parameterIndex The index of the parameter.
+	 * @return The standard error of the derivative with respect to the parameter, as for getStandardError().
+	 */
+	public double getDerivativeStandardError(int parameterIndex) {
+		return Math.sqrt(variance(derivativeSums[parameterIndex], derivativeSumsOfSquares[parameterIndex]) / numberOfPaths);
+	}
+
+	private static RandomVariable constant(double value) {
+		return RandomVariable.factory(false).fromConstant(value);
+	}
+
+	/**
+	 * Encodes the state bit by bit, such that decode() restores it exactly. The line starts with the version of the
+	 * encoding and the number of parameters, followed by the number of paths and the sums.
+	 * @return A single line of text.
+	 */
+	public String encode() {
+		StringBuilder line = new StringBuilder(encodingVersion);
+		line.append(' ').append(derivativeSums.length).append(' ').append(numberOfPaths);
+		line.append(' ').append(encode(sum)).append(' ').append(encode(sumOfSquares));
+		for (int i = 0; i < derivativeSums.length; i++)
+			line.append(' ').append(encode(derivativeSums[i])).append(' ').append(encode(derivativeSumsOfSquares[i]));
+		return line.toString();
+	}
+
+	private static String encode(double value) {
+		return Long.toHexString(Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Restores an accumulator encoded by encode().
+	 * @param line The encoded state.
+	 * @param numberOfParameters The number of parameters the accumulator is expected to have.
+	 * @return The accumulator.
+	 * @throws IllegalArgumentException If the line is not an accumulator of this encoding version, or of a different
+	 * number of parameters.
+	 */
+	public static MonteCarloAccumulator decode(String line, int numberOfParameters) {
+		String[] tokens = line.trim().split(" ");
+		if (tokens.length < 2 || !tokens[0].equals(encodingVersion))
+			throw new IllegalArgumentException("Not an encoded accumulator of version " + encodingVersion + ": " + line);
+		if (Integer.parseInt(tokens[1]) != numberOfParameters)
+			throw new IllegalArgumentException("Expected an accumulator of " + numberOfParameters + " parameters, got " + tokens[1] + ".");
+		if (tokens.length != 5 + 2 * numberOfParameters)
+			throw new IllegalArgumentException("Truncated or malformed accumulator: " + line);
+
+		MonteCarloAccumulator accumulator = new MonteCarloAccumulator(numberOfParameters);
+		accumulator.numberOfPaths = Long.parseLong(tokens[2]);
+		accumulator.sum = decodeDouble(tokens[3]);
+		accumulator.sumOfSquares = decodeDouble(tokens[4]);
+		for (int i = 0; i < numberOfParameters; i++) {
+			accumulator.derivativeSums[i] = decodeDouble(tokens[5 + 2 * i]);
+			accumulator.derivativeSumsOfSquares[i] = decodeDouble(tokens[6 + 2 * i]);
+		}
+		return accumulator;
+	}
+
+	private static double decodeDouble(String token) {
+		return Double.longBitsToDouble(Long.parseUnsignedLong(token, 16));
+	}
+}
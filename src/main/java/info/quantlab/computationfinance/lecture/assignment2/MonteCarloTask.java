@@ -0,0 +1,20 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+/**
+ * A Monte Carlo valuation which can be run on disjoint blocks of paths, e.g. by ShardedMonteCarlo. Implementations
+ * need a no-argument constructor, since they are instantiated by name in worker processes.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+@FunctionalInterface
+public interface MonteCarloTask {
+
+	/**
+	 * Builds the pathwise value of one block of paths.
+	 * @param normals Independent standard normal samples, one per path of the block.
+	 * @param parameters Recorded leaves holding the model parameters, with respect to which derivatives are taken.
+	 * @return The pathwise value, not its expectation.
+	 */
+	RandomVariable getValue(RandomVariable normals, RandomVariableDifferentiable[] parameters);
+}
@@ -1,16 +1,28 @@
 package info.quantlab.computationfinance.lecture.assignment2;
 
+import java.lang.ref.WeakReference;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 import net.finmath.aadexperiments.randomvalue.RandomValue;
 import net.finmath.aadexperiments.value.ConvertableToFloatingPoint;
+import net.finmath.functions.NormalDistribution;
+import net.finmath.montecarlo.RandomVariableFromDoubleArray;
 
 /**
  * A class holding sample values of a random variable, with support for built-in, as well as custom, arithmetic operations of
@@ -34,6 +46,37 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 */
 	public static double tolerance = 1e-8;
 
+	/**
+	 * Maximum number of entries of the cache used for structural interning of built-in operations: applying the same
+	 * operation to operands with the same ids, or to the same id and the same scalar, returns the node created before,
+	 * as long as it is still reachable. Setting this to 0 disables interning. Changes, also from other threads, apply
+	 * to the operations that follow.
+	 */
+	public static volatile int internCacheSize = 1 << 12;
+
+	/**
+	 * Precision tiers of exp() and log().
+	 */
+	public enum Precision {
+		/**
+		 * Math.exp and Math.log.
+		 */
+		EXACT,
+		/**
+		 * FastMath.exp and FastMath.log, see there for the error bounds.
+		 */
+		FAST
+	}
+
+	/**
+	 * Controls the precision tier of subsequent exp() and log() operations. Every node keeps the tier it has been
+	 * created with, such that rematerialization and compiled kernels reproduce its values, and the adjoint rules stay
+	 * consistent: the derivative of exp is its (approximate) value, that of log is 1/x, which differs from the
+	 * derivative of the approximation by less than its error bound. Changes, also from other threads, apply to the
+	 * operations that follow.
+	 */
+	public static volatile Precision precision = Precision.EXACT;
+
 	/**
 	 * If set to true, obj.writeDebug (where obj is an instance of RandomVariable) will write debug messages to System.out.
 	 * This method is called when RandomVariable.choose() is applied, and it will print the number of samples within the
@@ -43,6 +86,64 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 
 	private static AtomicLong nextId = new AtomicLong();
 
+	/**
+	 * Identifies a node by its operation, the ids of its operands and its parameter, e.g. the call spread of CHO or the
+	 * scalar operand of add(double).
+	 */
+	private static final class NodeKey {
+		private final Operation operation;
+		private final long[] ids;
+		private final long h;
+
+		NodeKey(Operation operation, double h, RandomVariable... operands) {
+			this.operation = operation;
+			this.h = Double.doubleToLongBits(h);
+			ids = new long[operands.length];
+			for (int i = 0; i < operands.length; i++)
+				ids[i] = operands[i].id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof NodeKey))
+				return false;
+			NodeKey key = (NodeKey)obj;
+			return operation == key.operation && h == key.h && Arrays.equals(ids, key.ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * operation.hashCode() + Long.hashCode(h)) + Arrays.hashCode(ids);
+		}
+	}
+
+	/**
+	 * Least recently used nodes of one stripe of the interning cache, weakly referenced, such that the cache neither
+	 * retains graphs nor grows beyond RandomVariable.internCacheSize.
+	 */
+	private static final class InternCacheStripe extends LinkedHashMap<NodeKey, WeakReference<RandomVariable>> {
+		private static final long serialVersionUID = 1L;
+
+		InternCacheStripe() {
+			super(16, .75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<NodeKey, WeakReference<RandomVariable>> eldest) {
+			return size() > (internCacheSize + internCache.length - 1) / internCache.length;
+		}
+	}
+
+	/**
+	 * The interning cache, striped by the hash of the keys, such that concurrent valuations, e.g. of the parallel
+	 * pricers, rarely contend for the same lock.
+	 */
+	private static final InternCacheStripe[] internCache = new InternCacheStripe[64];
+	static {
+		for (int i = 0; i < internCache.length; i++)
+			internCache[i] = new InternCacheStripe();
+	}
+
 	protected long id = nextId.incrementAndGet();
 
 	/**
@@ -50,6 +151,16 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 */
 	protected double h = Double.NaN;
 
+	/**
+	 * Constant parameter of POW (exponent), MAX (floor), MIN (cap) and DISCOUNT (time), NaN otherwise.
+	 */
+	protected double parameter = Double.NaN;
+
+	/**
+	 * Precision tier of EXP and LOG.
+	 */
+	protected Precision operationPrecision = Precision.EXACT;
+
 	/**
 	 * locked = true indicates that this random variable is the result of a derivative operation on a RandomVariable constructed through
 	 * RandomVariable.choose(), or a descendant thereof. It is not possible to construct RandomVariableDifferentiable objects by passing
@@ -59,12 +170,41 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 */
 	protected boolean undifferentiable = false;
 
+	/**
+	 * recording = false indicates that this random variable was created by a non-recording factory, or only from such
+	 * random variables. Operations on non-recording random variables do not record dependencies, and return plain
+	 * RandomVariable objects, such that no graph is retained. Non-recording random variables act as constants when
+	 * passed to an operation together with a recording one.
+	 */
+	protected boolean recording = true;
+
+	/**
+	 * modified = true indicates that the values of this random variable have been overwritten by an in-place
+	 * operation, such that it is no longer valid as a cached result of another random variable.
+	 */
+	protected boolean modified = false;
+
+	/**
+	 * recordedOperand = true indicates that the values of this non-recording random variable are read by a recorded
+	 * graph, as a constant operand of a recorded operation or as the values of a recorded leaf, such that they must
+	 * not be modified in place any more.
+	 */
+	protected boolean recordedOperand = false;
+
+	/**
+	 * sharedValues = true indicates that the sample values of this random variable are shared with finmath-lib, see
+	 * RandomVariableFactory.fromFinmath() and RandomVariable.toFinmath(), such that they must neither be modified in
+	 * place nor returned to the SampleBufferPool.
+	 */
+	protected boolean sharedValues = false;
+
 	private RandomVariableFactory mFactory = null;
 
 	/**
-	 * Sample values.
+	 * Sample values, a single element if deterministic. May be null if they have been released, see
+	 * RandomVariable.releaseValues(); use RandomVariable.getValues() to access them.
 	 */
-	protected ArrayList<Double> values;
+	protected double[] values;
 
 	/**
 	 * Functional interface for function of three input variables and one output.
@@ -80,10 +220,71 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 		public R apply(T t, U u, V v);
 	}
 
+	/**
+	 * Primitive specialization of TriFunction, used for the sample-wise kernels of operations of three arguments.
+	 * @author Jakob Ullmann
+	 *
+	 */
+	@FunctionalInterface
+	public interface DoubleTernaryOperator {
+		public double applyAsDouble(double a, double b, double c);
+	}
+
 	protected enum Operation {
-		SQRT, EXP, LOG, SQR, ADD, SUB, MUL, DIV, CHO, CUSTOMUNI, CUSTOMBI, CUSTOMTRI, EXPECT
+		SQRT, EXP, LOG, SQR, ADD, SUB, MUL, DIV, CHO, CUSTOMUNI, CUSTOMBI, CUSTOMTRI, EXPECT,
+		POW, MAX, MIN, ABS, NCDF, NPDF, DISCOUNT, FMA
+	}
+
+	/*
+	 * Sample-wise functions of the built-in operations, shared by the operations and by rematerialize().
+	 */
+	private static final DoubleUnaryOperator  SQUARE = a -> a * a;
+	private static final DoubleUnaryOperator  ROOT   = a -> Math.sqrt(a);
+	private static final DoubleUnaryOperator  EXPONENTIAL = a -> Math.exp(a);
+	private static final DoubleUnaryOperator  LOGARITHM   = a -> a >  0 ? Math.log(a) :
+	                                                             a == 0 ? Double.NEGATIVE_INFINITY
+	                                                                    : Double.NaN;
+	private static final DoubleUnaryOperator  FAST_EXPONENTIAL = a -> FastMath.exp(a);
+	private static final DoubleUnaryOperator  FAST_LOGARITHM   = a -> FastMath.log(a);
+	private static final DoubleBinaryOperator SUM        = (a,b) -> a + b;
+	private static final DoubleBinaryOperator DIFFERENCE = (a,b) -> a - b;
+	private static final DoubleBinaryOperator PRODUCT    = (a,b) -> a * b;
+	private static final DoubleBinaryOperator QUOTIENT   = (a,b) -> a / b;
+	private static final DoubleUnaryOperator  ABSOLUTE   = a -> Math.abs(a);
+	private static final DoubleUnaryOperator  NORMAL_CDF = a -> NormalDistribution.cumulativeDistribution(a);
+	private static final DoubleUnaryOperator  NORMAL_PDF = a -> NormalDistribution.density(a);
+	private static final DoubleTernaryOperator MULTIPLY_ADD = (a,b,c) -> a * b + c;
+
+	/*
+	 * Sample-wise functions of the built-in operations with a constant parameter.
+	 */
+	private static DoubleUnaryOperator getPowerFunction(double exponent) {
+		return a -> Math.pow(a, exponent);
+	}
+
+	private static DoubleUnaryOperator getFloorFunction(double floor) {
+		return a -> Math.max(a, floor);
+	}
+
+	private static DoubleUnaryOperator getCapFunction(double cap) {
+		return a -> Math.min(a, cap);
+	}
+
+	private static DoubleBinaryOperator getDiscountFunction(double time) {
+		return (a, r) -> a * Math.exp(-r * time);
+	}
+
+	private static DoubleUnaryOperator getExponential(Precision precision) {
+		return precision == Precision.FAST ? FAST_EXPONENTIAL : EXPONENTIAL;
+	}
+
+	private static DoubleUnaryOperator getLogarithm(Precision precision) {
+		return precision == Precision.FAST ? FAST_LOGARITHM : LOGARITHM;
 	}
 
+	protected Function<Double, Double>                        customFunction                = null;
+	protected BiFunction<Double, Double, Double>              customBiFunction              = null;
+	protected TriFunction<Double, Double, Double, Double>     customTriFunction             = null;
 	protected Function<Double, Double>                        customFunctionDerivative      = null;
 	protected BiFunction<Double, Double, Double>              customBiFunctionDerivativeX   = null;
 	protected BiFunction<Double, Double, Double>              customBiFunctionDerivativeY   = null;
@@ -116,34 +317,33 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	protected Operation operation = null;
 
 	/**
-	 * List of dependencies for AAD.
+	 * List of dependencies for AAD. Empty and immutable until the first dependency is added.
 	 */
-	protected ArrayList<RandomVariable> deps = new ArrayList<>(3);
+	protected List<RandomVariable> deps = Collections.emptyList();
 
 	/**
-	 * Basic constructor. Initializes this.values to be an empty list, allocates space for one element.
+	 * Basic constructor. this.values has to be assigned by the caller.
 	 */
 	protected RandomVariable() {
-		values = new ArrayList<>(1);
 	}
 
 	/**
-	 * Creates a random variable from a given ArrayList<Double> of values. Important: The ArrayList values will be assigned,
+	 * Creates a random variable from a given array of values. Important: The array values will be assigned,
 	 * not copied!
-	 * @param values An ArrayList<Double> holding the values.
+	 * @param values An array holding the values.
 	 */
-	protected RandomVariable(ArrayList<Double> values) {
+	protected RandomVariable(double[] values) {
 		this();
 		this.values = values;
 		simplify();
 	}
 
 	/**
-	 * Creates a random variable from a given ArrayList<Double> of values and sets operation.
-	 * @param values An ArrayList<Double> containing the values.
+	 * Creates a random variable from a given array of values and sets operation.
+	 * @param values An array containing the values.
 	 * @param operation Arithmetic operation.
 	 */
-	protected RandomVariable(ArrayList<Double> values, Operation operation) {
+	protected RandomVariable(double[] values, Operation operation) {
 		this(values);
 		this.operation = operation;
 	}
@@ -151,7 +351,7 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	@Override
 	public Double asFloatingPoint() {
 		if (isDeterministic())
-			return values.get(0);
+			return getValues()[0];
 		else
 			return Double.NaN;
 	}
@@ -172,10 +372,49 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 */
 	@Override
 	public SummaryStatistics getSummaryStatistics() {
-		return new SummaryStatistics(calculateExpectation(), calculateVariance(), calculateStandardError(), values.size());
+		return new SummaryStatistics(calculateExpectation(), calculateVariance(), calculateStandardError(), getValues().length);
+	}
+
+	/**
+	 * Adapts this random variable to finmath-lib, see RandomVariableFactory.fromFinmath() for the opposite direction.
+	 * The sample values of a leaf, e.g. the result of an operation which is not recorded, are shared instead of
+	 * copied; in-place operations on this random variable then throw, and dispose() no longer recycles its values.
+	 * The values of a recorded node are copied, as they are released by releaseForwardValues() or a recycling
+	 * RandomVariableTape.
+	 * @param time The filtration time of the finmath-lib random variable.
+	 * @return A finmath-lib random variable with the same values.
+	 */
+	public RandomVariableFromDoubleArray toFinmath(double time) {
+		double[] x = getValues();
+		if (isDeterministic())
+			return new RandomVariableFromDoubleArray(time, x[0]);
+		if (operation != null)
+			return new RandomVariableFromDoubleArray(time, x.clone());
+		sharedValues = true;
+		return new RandomVariableFromDoubleArray(time, x);
 	}
 
 
+	/**
+	 * Records the custom function itself, such that the operation can be replayed, e.g. by RandomVariableKernel.
+	 * @param f The custom function
+	 * @return this
+	 */
+	protected RandomVariable setCustomFunction(Function<Double, Double> f) {
+		this.customFunction = f;
+		return this;
+	}
+
+	protected RandomVariable setCustomFunction(BiFunction<Double, Double, Double> f) {
+		this.customBiFunction = f;
+		return this;
+	}
+
+	protected RandomVariable setCustomFunction(TriFunction<Double, Double, Double, Double> f) {
+		this.customTriFunction = f;
+		return this;
+	}
+
 	protected RandomVariable setCustomFunctionDerivative(Function<Double, Double> f) {
 		this.customFunctionDerivative = f;
 		return this;
@@ -204,13 +443,33 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 		return this;
 	}
 
+	/**
+	 * Fix the precision tier of the operation.
+	 * @param precision Value to be fixed.
+	 * @return this
+	 */
+	protected RandomVariable setPrecision(Precision precision) {
+		this.operationPrecision = precision;
+		return this;
+	}
+
+	/**
+	 * Fix the constant parameter of the operation.
+	 * @param parameter Value to be fixed.
+	 * @return this
+	 */
+	protected RandomVariable setParameter(double parameter) {
+		this.parameter = parameter;
+		return this;
+	}
+
 	/**
 	 *
 	 * @param values
 	 * @param operation
 	 * @param deps
 	 */
-	protected RandomVariable(ArrayList<Double> values, Operation operation, ArrayList<RandomVariable> deps) {
+	protected RandomVariable(double[] values, Operation operation, ArrayList<RandomVariable> deps) {
 		this(values, operation);
 		this.deps = deps;
 	}
@@ -221,9 +480,15 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 		this.deps = rv.deps;
 		this.operation = rv.operation;
 		this.undifferentiable = rv.undifferentiable;
+		this.recording = rv.recording;
 		this.h = rv.h;
+		this.parameter = rv.parameter;
+		this.operationPrecision = rv.operationPrecision;
 		this.id = rv.id;
 		this.deterministic = rv.deterministic;
+		this.customFunction = rv.customFunction;
+		this.customBiFunction = rv.customBiFunction;
+		this.customTriFunction = rv.customTriFunction;
 		this.customFunctionDerivative = rv.customFunctionDerivative;
 		this.customBiFunctionDerivativeX = rv.customBiFunctionDerivativeX;
 		this.customBiFunctionDerivativeY = rv.customBiFunctionDerivativeY;
@@ -236,16 +501,61 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 		this.mExpectation = rv.mExpectation;
 		this.mStandardError = rv.mStandardError;
 		this.mVariance = rv.mVariance;
+		this.recordedOperand = rv.recordedOperand;
+		this.sharedValues = rv.sharedValues;
 	}
 
+	/**
+	 * Adds the arguments as dependencies, unless none of them is recording and no RandomVariableTape is open, in which
+	 * case this random variable is marked as non-recording instead.
+	 * @param args Dependencies
+	 * @return this
+	 */
 	protected RandomVariable addDependencies(RandomVariable... args) {
+		boolean record = RandomVariableTape.isRecording();
 		for (var arg : args)
+			record |= arg.recording;
+		if (!record) {
+			recording = false;
+			return this;
+		}
+
+		if (deps.isEmpty())
+			deps = new ArrayList<>(args.length);
+		for (var arg : args) {
 			deps.add(arg);
+			if (!arg.recording)
+				arg.recordedOperand = true;
+		}
 		return this;
 	}
 
+	/**
+	 * Returns the values of a recorded leaf standing in for this random variable, sharing the values of a leaf, which
+	 * must then no longer be modified in place, and copying those of an intermediate node of a recorded graph, since
+	 * they may be released.
+	 * @return The values.
+	 */
+	protected double[] getValuesForRecording() {
+		if (operation != null)
+			return getValues().clone();
+		recordedOperand = true;
+		return getValues();
+	}
+
+	/**
+	 * Sets the operation, unless this random variable is non-recording.
+	 * @param operation Arithmetic operation.
+	 * @return this
+	 */
 	protected RandomVariable setOperation(Operation operation) {
-		this.operation = operation;
+		if (recording)
+			this.operation = operation;
+		return this;
+	}
+
+	protected RandomVariable setRecording(boolean recording) {
+		this.recording = recording;
 		return this;
 	}
 
@@ -268,42 +578,103 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 
 	/**
 	 * Returns either result, or a new RandomVariableDifferentiable instance holding a copy of result (and having the same id),
-	 * depending on result.locked and whether result is already an instance of RandomVariableDifferentiable.
+	 * depending on result.locked, result.recording and whether result is already an instance of RandomVariableDifferentiable.
+	 * Recorded results are registered with the open RandomVariableTape, if any.
 	 * @param result
 	 * @return Either result or a RandomVariableDifferentiable copy of result.
 	 */
 	private static RandomVariable doReturn(RandomVariable result) {
-		if (!result.undifferentiable && !(result instanceof RandomVariableDifferentiable))
-			return new RandomVariableDifferentiable(result);
-		else
-			return result;
+		if (result.recording && !result.undifferentiable && !(result instanceof RandomVariableDifferentiable))
+			result = new RandomVariableDifferentiable(result);
+		if (result.operation != null)
+			RandomVariableTape.register(result);
+		return result;
 	}
 
-	private boolean allEqual(int... args) {
-		Integer val = null;
-		for (int arg : args) {
-			if (val == null)
-				val = arg;
-			else if (arg != val)
-				return false;
+	/**
+	 * Indicates whether a cached result of an operation on this random variable can be returned: a result without
+	 * recorded operation is not valid while operations are recorded, i.e. if this random variable is recording or a
+	 * RandomVariableTape is open, neither is a result that has been disposed of or modified in place. The former
+	 * covers results cached without recording, as well as results recorded on a tape that has been closed since, and
+	 * thereby detached from their operands.
+	 * @param cached The cached result, or null.
+	 * @return true if cached can be returned.
+	 */
+	private boolean isCacheValid(RandomVariable cached) {
+		return cached != null && !cached.isDisposed() && !cached.modified
+				&& (cached.operation != null || !(recording || RandomVariableTape.isRecording()));
+	}
+
+	/**
+	 * Returns the node resulting from applying operation to operands, if it has been created before and is still
+	 * reachable, or the node created by supplier otherwise. Results of non-recording operands are not interned.
+	 * @param operation The operation
+	 * @param h The call spread parameter for CHO, the constant parameter for POW, MAX, MIN and DISCOUNT, the ordinal of
+	 * the precision tier for EXP and LOG, the scalar operand for ADD, MUL and DIV with a scalar, NaN otherwise.
+	 * @param supplier Creates the node if it is not found.
+	 * @param operands The operands.
+	 * @return The interned node.
+	 */
+	private static RandomVariable intern(Operation operation, double h, Supplier<RandomVariable> supplier, RandomVariable... operands) {
+		boolean recording = RandomVariableTape.isRecording();
+		for (RandomVariable operand : operands)
+			recording |= operand.recording;
+		if (internCacheSize <= 0 || !recording)
+			return supplier.get();
+
+		NodeKey key = new NodeKey(operation, h, operands);
+		InternCacheStripe stripe = internCache[(key.hashCode() & 0x7fffffff) % internCache.length];
+		synchronized (stripe) {
+			WeakReference<RandomVariable> reference = stripe.get(key);
+			RandomVariable node = reference != null ? reference.get() : null;
+			if (node != null && !node.isDisposed())
+				return node;
 		}
-		return true;
+
+		RandomVariable node = supplier.get();    // computed outside the lock, a concurrent duplicate is harmless
+		synchronized (stripe) {
+			stripe.put(key, new WeakReference<>(node));
+		}
+		return node;
 	}
 
 	/**
-	 * Checks whether the list passed hereto is deterministic within the tolerance range controlled
+	 * Removes the given nodes from the structural interning cache.
+	 * @param nodes Nodes which must not be returned by interning any more.
+	 */
+	static void forget(Collection<RandomVariable> nodes) {
+		Set<RandomVariable> forgotten = Collections.newSetFromMap(new IdentityHashMap<>());
+		forgotten.addAll(nodes);
+		for (InternCacheStripe stripe : internCache)
+			synchronized (stripe) {
+				stripe.values().removeIf(reference -> reference.get() == null || forgotten.contains(reference.get()));
+			}
+	}
+
+	/**
+	 * Removes all entries from the structural interning cache.
+	 */
+	public static void clearInternCache() {
+		for (InternCacheStripe stripe : internCache)
+			synchronized (stripe) {
+				stripe.clear();
+			}
+	}
+
+	/**
+	 * Checks whether the array passed hereto is deterministic within the tolerance range controlled
 	 * by RandomVariable.tolerance.
 	 * @param values
 	 * @return
 	 */
-	protected static boolean areValuesDeterministic(List<Double> values) {
-		int s = values.size();
+	protected static boolean areValuesDeterministic(double[] values) {
+		int s = values.length;
 		if (s == 0)
 			return false;
 		else if (s == 1)
 			return true;
 		else {
-			double a = values.get(0);
+			double a = values[0];
 			for (double b : values)
 				if (Math.abs(b - a) > tolerance)
 					return false;
@@ -317,6 +688,8 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return true if deterministic, else false.
 	 */
 	protected boolean isDeterministic() {
+		if (values == null)
+			return deterministic;          // only stochastic values are released
 		if (!deterministic)
 			deterministic = areValuesDeterministic(values);
 		if (deterministic)
@@ -325,171 +698,212 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	}
 
 	/**
-	 * Reduce this.values to its first element; Does not perform a check for determinacy.
+	 * Reduce this.values to its first element; Does not perform a check for determinacy. The original array is not
+	 * returned to the SampleBufferPool, since it may be shared, e.g. with an input of a RandomVariableTape.
 	 */
 	protected void reduce() {
-		double a = values.get(0);
-		values = new ArrayList<>(1);
-		values.add(a);
+		if (values.length > 1)
+			values = new double[] { values[0] };
 		deterministic = true;
 	}
 
 	/**
-	 * Same as this.isDeterministic() and throwing away the result.
+	 * Returns the sample values, rematerializing them from the dependencies if they have been released.
+	 * @return The sample values, which must not be modified.
 	 */
-	protected void simplify() {
-		isDeterministic();
-	}
-
-	protected ArrayList<Double> applyArithmeticOperation(Function<Double, Double> func, double op) {
-		ArrayList<Double> result = new ArrayList<>(1);
-		result.add(func.apply(op));
+	protected double[] getValues() {
+		double[] result = values;
+		if (result == null)
+			values = result = rematerialize();
 		return result;
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(BiFunction<Double, Double, Double> func, List<Double> op1, double op2) {
-		if (!op1.isEmpty())
-			return new ArrayList<>(op1.parallelStream().map(o -> func.apply(o, op2)).collect(Collectors.toList()));
-		else
-			throw new UnsupportedOperationException("applyArithmeticOperation called with empty operand");
-	}
-
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func, List<Double> op1, double op2, double op3) {
-		if (!op1.isEmpty())
-			return new ArrayList<>(op1.parallelStream().map(o -> func.apply(o, op2, op3)).collect(Collectors.toList()));
-		else
-			throw new UnsupportedOperationException("applyArithmeticOperation called with empty operand");
+	/**
+	 * Releases the sample values of this random variable to the SampleBufferPool. They will be recomputed from the
+	 * dependencies when accessed again. Values of leaves, expectations and deterministic random variables are never
+	 * released.
+	 * @return true if the values have been released.
+	 */
+	protected boolean releaseValues() {
+		if (values == null || operation == null || operation == Operation.EXPECT || isDeterministic())
+			return false;
+		SampleBufferPool.release(values);
+		values = null;
+		return true;
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(BiFunction<Double, Double, Double> func, double op1, List<Double> op2) {
-		return applyArithmeticOperation((b, a) -> func.apply(a, b), op2, op1);
+	/**
+	 * Returns the sample buffer of this random variable to the SampleBufferPool, such that the next operation of the
+	 * same size can reuse it instead of allocating. If this is an intermediate node of a recorded graph, its values
+	 * are recomputed from the dependencies when accessed again; otherwise this random variable must not be used any
+	 * more. Must not be called on random variables whose values are shared, i.e. which have been passed to
+	 * RandomVariableTape.input(). Values shared with finmath-lib are dropped, but not recycled. Deterministic values
+	 * are kept, and so are the values of operands of recorded operations, which the reverse sweep still reads.
+	 */
+	public void dispose() {
+		double[] buffer = values;
+		if (buffer == null || buffer.length == 1 || recordedOperand)
+			return;
+		values = null;
+		if (!sharedValues)
+			SampleBufferPool.release(buffer);
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(BiFunction<Double, Double, Double> func, List<Double> op1, List<Double> op2) {
-		int s1 = op1.size(); int s2 = op2.size();
-		if (s1 == s2 && s1 > 0) {
-
-			ArrayList<Double> result = new ArrayList<>(op1);
-
-			IntStream intstr = IntStream.range(0, s1);
-			intstr.parallel().forEach(i -> {
-				result.set(i, func.apply(op1.get(i), op2.get(i))); // no structural modification, so thread-safe
-			});
-
-			return result;
-		} else
-			throw new UnsupportedOperationException(MessageFormat.format("applyArithmeticOperation called with different or zero operand dimensions: {0}, {1}.",
-					                                 s1, s2));
+	/**
+	 * Indicates whether the values of this random variable have been disposed of and cannot be recomputed.
+	 * @return true if this random variable must not be used any more.
+	 */
+	protected boolean isDisposed() {
+		return values == null && (operation == null || operation == Operation.EXPECT);
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func, List<Double> op1, List<Double> op2, List<Double> op3) {
-		int s1 = op1.size(); int s2 = op2.size(); int s3 = op3.size();
-		if (allEqual(s1, s2, s3) && s1 > 0) {
-			ArrayList<Double> result = new ArrayList<>(op1);
-
-			IntStream intstr = IntStream.range(0, s1);
-			intstr.parallel().forEach(i -> {
-				result.set(i, func.apply(op1.get(i), op2.get(i), op3.get(i)));
-			});
-
-			return result;
-		} else
-			throw new UnsupportedOperationException(MessageFormat.format("applyArithmeticOperation called with different or zero operand dimensions: {0}, {1}, {2}.",
-					                                 s1, s2, s3));
+	/**
+	 * Recomputes the sample values by replaying this.operation on the values of the dependencies.
+	 * @return The sample values.
+	 */
+	private double[] rematerialize() {
+		if (operation == null || operation == Operation.EXPECT)
+			throw new IllegalStateException("Values of a leaf or an expectation cannot be rematerialized; they may have been disposed.");
+
+		double[] x = deps.get(0).getValues();
+		double[] y = deps.size() > 1 ? deps.get(1).getValues() : null;
+		double[] z = deps.size() > 2 ? deps.get(2).getValues() : null;
+
+		switch (operation) {
+			case SQR:       return applyArithmeticOperationBroadcast(SQUARE, x);
+			case SQRT:      return applyArithmeticOperationBroadcast(ROOT, x);
+			case EXP:       return applyArithmeticOperationBroadcast(getExponential(operationPrecision), x);
+			case LOG:       return applyArithmeticOperationBroadcast(getLogarithm(operationPrecision), x);
+			case ADD:       return applyArithmeticOperationBroadcast(SUM, x, y);
+			case SUB:       return applyArithmeticOperationBroadcast(DIFFERENCE, x, y);
+			case MUL:       return applyArithmeticOperationBroadcast(PRODUCT, x, y);
+			case DIV:       return applyArithmeticOperationBroadcast(QUOTIENT, x, y);
+			case CHO:       return applyArithmeticOperationBroadcast(getIndicatorFunction(h), x, y, z);
+			case CUSTOMUNI: return applyArithmeticOperationBroadcast(primitive(customFunction), x);
+			case CUSTOMBI:  return applyArithmeticOperationBroadcast(primitive(customBiFunction), x, y);
+			case CUSTOMTRI: return applyArithmeticOperationBroadcast(primitive(customTriFunction), x, y, z);
+			case POW:       return applyArithmeticOperationBroadcast(getPowerFunction(parameter), x);
+			case MAX:       return applyArithmeticOperationBroadcast(getFloorFunction(parameter), x);
+			case MIN:       return applyArithmeticOperationBroadcast(getCapFunction(parameter), x);
+			case ABS:       return applyArithmeticOperationBroadcast(ABSOLUTE, x);
+			case NCDF:      return applyArithmeticOperationBroadcast(NORMAL_CDF, x);
+			case NPDF:      return applyArithmeticOperationBroadcast(NORMAL_PDF, x);
+			case DISCOUNT:  return applyArithmeticOperationBroadcast(getDiscountFunction(parameter), x, y);
+			case FMA:       return applyArithmeticOperationBroadcast(MULTIPLY_ADD, x, y, z);
+			default:        throw new IllegalStateException("Operation " + operation + " cannot be rematerialized.");
+		}
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func, List<Double> op1, List<Double> op2, double op3) {
-		int s1 = op1.size(); int s2 = op2.size();
-		if (s1 == s2 && s1 > 0) {
-			ArrayList<Double> result = new ArrayList<>(op1);
-
-			IntStream intstr = IntStream.range(0, s1);
-			intstr.parallel().forEach(i -> {
-				result.set(i, func.apply(op1.get(i), op2.get(i), op3));
-			});
-
-			return result;
-		} else
-			throw new UnsupportedOperationException(MessageFormat.format("applyArithmeticOperation called with different or zero operand dimensions: {0}, {1}.",
-					                                 s1, s2));
+	/**
+	 * Same as this.isDeterministic() and throwing away the result.
+	 */
+	protected void simplify() {
+		isDeterministic();
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func,
-			double op1, double op2, List<Double> op3) {
-		return applyArithmeticOperation((b, c, a) -> func.apply(a, b, c), op2, op3, op1);
+	/*
+	 * Adapters of the boxed custom functions to the primitive operators used by applyArithmeticOperationBroadcast().
+	 */
+	protected static DoubleUnaryOperator primitive(Function<Double, Double> func) {
+		return a -> func.apply(a);
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func,
-			double op1, List<Double> op2, double op3) {
-		return applyArithmeticOperation((b, a, c) -> func.apply(a, b, c), op2, op1, op3);
+	protected static DoubleBinaryOperator primitive(BiFunction<Double, Double, Double> func) {
+		return (a, b) -> func.apply(a, b);
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func,
-			double op1, List<Double> op2, List<Double> op3) {
-		return applyArithmeticOperation((b, c, a) -> func.apply(a, b, c), op2, op3, op1);
+	protected static DoubleTernaryOperator primitive(TriFunction<Double, Double, Double, Double> func) {
+		return (a, b, c) -> func.apply(a, b, c);
 	}
 
-	protected ArrayList<Double> applyArithmeticOperation(TriFunction<Double, Double, Double, Double> func,
-			List<Double> op1, double op2, List<Double> op3) {
-		return applyArithmeticOperation((a, c, b) -> func.apply(a, b, c), op1, op3, op2);
+	/**
+	 * Returns the number of samples of the result of an operation on operands of the given lengths, where
+	 * deterministic operands are passed as 1.
+	 * @param lengths Lengths of the operands.
+	 * @return The common length of the stochastic operands, or 1 if all operands are deterministic.
+	 */
+	private static int getNumberOfSamples(int... lengths) {
+		int n = 1;
+		for (int length : lengths) {
+			if (length == 0 || (length > 1 && n > 1 && length != n))
+				throw new UnsupportedOperationException(MessageFormat.format("applyArithmeticOperation called with different or zero operand dimensions: {0}.",
+						                                Arrays.toString(lengths)));
+			n = Math.max(n, length);
+		}
+		return n;
 	}
 
 	/*
 	 * Automatically extending the dimensionality of an object, i.e. when adding an M x N matrix
 	 * and an M-dimensional vector, is called broadcasting in numpy. I took the name from there,
 	 * because that is essentially what the bi- and trivariate overloadings of this method do.
+	 * Stochastic results are written to buffers taken from the SampleBufferPool.
 	 */
-	protected ArrayList<Double> applyArithmeticOperationBroadcast(Function<Double, Double> func, List<Double> op) {
+	protected static double[] applyArithmeticOperationBroadcast(DoubleUnaryOperator func, double[] op) {
 		if (areValuesDeterministic(op))
-			return applyArithmeticOperation(func, op.get(0));
-		else {
-			int s = op.size();
-			ArrayList<Double> result = new ArrayList<>(op);
-
-			IntStream intstr = IntStream.range(0, s);
-			intstr.parallel().forEach(i -> {
-				result.set(i, func.apply(op.get(i)));
-			});
+			return new double[] { func.applyAsDouble(op[0]) };
 
-			return result;
-		}
+		double[] result = SampleBufferPool.acquire(op.length);
+		IntStream.range(0, op.length).parallel().forEach(i -> result[i] = func.applyAsDouble(op[i]));
+		return result;
 	}
 
-	protected ArrayList<Double> applyArithmeticOperationBroadcast(BiFunction<Double, Double, Double> func, List<Double> op1, List<Double> op2) {
+	protected static double[] applyArithmeticOperationBroadcast(DoubleBinaryOperator func, double[] op1, double[] op2) {
 		boolean det1 = areValuesDeterministic(op1), det2 = areValuesDeterministic(op2);
-		if (!(det1 ^ det2))
-			return applyArithmeticOperation(func, op1, op2);
-		else if (det1 && !det2)
-			return applyArithmeticOperation(func, op1.get(0), op2);
-		else // if (!det1 && det2)
-			return applyArithmeticOperation(func, op1, op2.get(0));
+		int s = getNumberOfSamples(det1 ? 1 : op1.length, det2 ? 1 : op2.length);
+		if (s == 1)
+			return new double[] { func.applyAsDouble(op1[0], op2[0]) };
+
+		double[] result = SampleBufferPool.acquire(s);
+		IntStream intstr = IntStream.range(0, s).parallel();
+		if (det1) {
+			double a = op1[0];
+			intstr.forEach(i -> result[i] = func.applyAsDouble(a, op2[i]));
+		} else if (det2) {
+			double b = op2[0];
+			intstr.forEach(i -> result[i] = func.applyAsDouble(op1[i], b));
+		} else
+			intstr.forEach(i -> result[i] = func.applyAsDouble(op1[i], op2[i]));
+		return result;
 	}
 
-	protected ArrayList<Double> applyArithmeticOperationBroadcast(TriFunction<Double, Double, Double, Double> func, List<Double> op1, List<Double> op2, List<Double> op3) {
+	protected static double[] applyArithmeticOperationBroadcast(DoubleTernaryOperator func, double[] op1, double[] op2, double[] op3) {
 		boolean det1 = areValuesDeterministic(op1), det2 = areValuesDeterministic(op2), det3 = areValuesDeterministic(op3);
-		if ((det1 && det2 && det3) || (!det1 && !det2 && !det3))
-			return applyArithmeticOperation(func, op1, op2, op3);
-		else if (!det1 && !det2 && det3)
-			return applyArithmeticOperation(func, op1, op2, op3.get(0));
-		else if (!det1 && det2 && !det3)
-			return applyArithmeticOperation(func, op1, op2.get(0), op3);
-		else if (det1 && !det2 && !det3)
-			return applyArithmeticOperation(func, op1.get(0), op2, op3);
-		else if (det1 && det2 && !det3)
-			return applyArithmeticOperation(func, op1.get(0), op2.get(0), op3);
-		else if (det1 && !det2 && det3)
-			return applyArithmeticOperation(func, op1.get(0), op2, op3.get(0));
-		else // if (!det1 && det2 && det3)
-			return applyArithmeticOperation(func, op1, op2.get(0), op3.get(0));
+		int s = getNumberOfSamples(det1 ? 1 : op1.length, det2 ? 1 : op2.length, det3 ? 1 : op3.length);
+		if (s == 1)
+			return new double[] { func.applyAsDouble(op1[0], op2[0], op3[0]) };
+
+		double[] result = SampleBufferPool.acquire(s);
+		IntStream.range(0, s).parallel().forEach(i -> result[i] = func.applyAsDouble(det1 ? op1[0] : op1[i],
+				                                                                    det2 ? op2[0] : op2[i],
+				                                                                    det3 ? op3[0] : op3[i]));
+		return result;
+	}
+
+	/**
+	 * Computes the sample mean.
+	 * @param values Sample values.
+	 * @return The mean.
+	 */
+	protected static double average(double[] values) {
+		return Arrays.stream(values).parallel().sum() / values.length;
 	}
 
 	@Override
 	public RandomVariableFactory getFactory() {
 		if (mFactory == null)
-			mFactory = factory();
+			mFactory = factory(recording);
 		return mFactory;
 	}
 
+	/**
+	 * Returns a factory for random variables.
+	 * @param recording If false, the factory creates plain random variables, on which operations are not recorded for AAD.
+	 * @return A new factory.
+	 */
+	public static RandomVariableFactory factory(boolean recording) {
+		return new RandomVariableFactory(recording);
+	}
 
 	public static RandomVariableFactory factory() {
 		return new RandomVariableFactory();
@@ -500,21 +914,31 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	protected RandomVariable mStandardError = null;
 
 	private double calculateExpectation() {
-		if (mExpectation == null)
-			mExpectation = getFactory().fromConstant(values.parallelStream().mapToDouble(a -> a).sum() / values.size())
-					.addDependencies(this).setOperation(Operation.EXPECT);
+		if (!isCacheValid(mExpectation))
+			mExpectation = doReturn( getFactory().fromConstant(average(getValues()))
+					.addDependencies(this).setOperation(Operation.EXPECT) );
 		return mExpectation.asFloatingPoint();
 	}
 
+	/*
+	 * The deviations are only needed for the expectation, and are recycled unless they are recorded.
+	 */
 	private double calculateVariance() {
-		if (mVariance == null)
-			mVariance = this.sub(this.expectation()).squared().expectation();
+		if (!isCacheValid(mVariance)) {
+			RandomVariable deviation = this.sub(this.expectation());
+			RandomVariable squaredDeviation = deviation.squared();
+			mVariance = squaredDeviation.expectation();
+			if (!squaredDeviation.recording) {
+				deviation.dispose();
+				squaredDeviation.dispose();
+			}
+		}
 		return mVariance.asFloatingPoint();
 	}
 
 	private double calculateStandardError() {
-		if (mStandardError == null)
-			mStandardError = variance().sqrt().div(this.values.size());
+		if (!isCacheValid(mStandardError))
+			mStandardError = variance().sqrt().div(getValues().length);
 		return mStandardError.asFloatingPoint();
 	}
 
@@ -537,19 +961,148 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 		return mStandardError;
 	}
 
+	/*
+	 * Tail measures. Quantiles are selected by parallel histogram refinement: each pass counts the samples within the
+	 * current range into RandomVariable.quantileBuckets buckets and narrows the range to the bucket holding the
+	 * requested rank, until few enough samples are left to be sorted. Neither the values are copied nor sorted.
+	 */
+
+	/**
+	 * Number of buckets of each pass of the quantile selection.
+	 */
+	private static final int quantileBuckets = 1 << 10;
+
+	/**
+	 * Number of samples below which the remaining candidates of the quantile selection are sorted.
+	 */
+	private static final int quantileSortThreshold = 1 << 12;
+
+	/**
+	 * Counts, minimum and maximum of the samples in each bucket of one pass of the quantile selection.
+	 */
+	private static final class Histogram {
+		private final long[] counts = new long[quantileBuckets];
+		private final double[] min = new double[quantileBuckets];
+		private final double[] max = new double[quantileBuckets];
+
+		private Histogram() {
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		/*
+		 * The bucket index is monotone in the value, hence the samples within [min[j], max[j]] are exactly those of
+		 * bucket j.
+		 */
+		private static Histogram of(double[] values, double lower, double upper) {
+			double halfLower = lower / 2, scale = quantileBuckets / (upper / 2 - halfLower);   // halves do not overflow
+			return IntStream.range(0, values.length).parallel().collect(Histogram::new, (histogram, i) -> {
+				double value = values[i];
+				if (value >= lower && value <= upper) {
+					int bucket = Math.min(quantileBuckets - 1, (int)((value / 2 - halfLower) * scale));
+					histogram.counts[bucket]++;
+					histogram.min[bucket] = Math.min(histogram.min[bucket], value);
+					histogram.max[bucket] = Math.max(histogram.max[bucket], value);
+				}
+			}, Histogram::merge);
+		}
+
+		private void merge(Histogram other) {
+			for (int bucket = 0; bucket < quantileBuckets; bucket++) {
+				counts[bucket] += other.counts[bucket];
+				min[bucket] = Math.min(min[bucket], other.min[bucket]);
+				max[bucket] = Math.max(max[bucket], other.max[bucket]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the empirical quantile, i.e. the smallest sample such that at least a fraction level of all samples is
+	 * less than or equal to it, where level * n is rounded within RandomVariable.tolerance, such that e.g. 1 - 0.99
+	 * selects the same sample as 0.01.
+	 * @param level The level, between 0 and 1.
+	 * @return The quantile.
+	 */
+	public double getQuantile(double level) {
+		if (!(level >= 0 && level <= 1))
+			throw new IllegalArgumentException("Quantile level " + level + " is not within [0, 1].");
+		if (isDeterministic())
+			return getValues()[0];
+
+		double[] x = getValues();
+		long rank = Math.max(1, (long)Math.ceil(level * x.length - tolerance));
+		long negativeInfinite = Arrays.stream(x).parallel().filter(value -> value == Double.NEGATIVE_INFINITY).count();
+		long positiveInfinite = Arrays.stream(x).parallel().filter(value -> value == Double.POSITIVE_INFINITY).count();
+		if (rank <= negativeInfinite)
+			return Double.NEGATIVE_INFINITY;
+		if (rank > x.length - positiveInfinite)
+			return Double.POSITIVE_INFINITY;
+
+		rank -= negativeInfinite;                                      // among the finite samples within [lower, upper]
+		double lower = Arrays.stream(x).parallel().filter(Double::isFinite).min().getAsDouble();
+		double upper = Arrays.stream(x).parallel().filter(Double::isFinite).max().getAsDouble();
+
+		while (lower < upper) {
+			Histogram histogram = Histogram.of(x, lower, upper);
+			int bucket = 0;
+			while (rank > histogram.counts[bucket])
+				rank -= histogram.counts[bucket++];
+			boolean narrowed = histogram.min[bucket] > lower || histogram.max[bucket] < upper;
+			lower = histogram.min[bucket];
+			upper = histogram.max[bucket];
+
+			if (histogram.counts[bucket] <= quantileSortThreshold || !narrowed) {
+				double l = lower, u = upper;
+				double[] candidates = Arrays.stream(x).parallel().filter(value -> value >= l && value <= u).toArray();
+				Arrays.sort(candidates);
+				return candidates[(int)rank - 1];
+			}
+		}
+		return lower;
+	}
+
+	/**
+	 * Returns the value at risk of this random variable, representing a profit and loss, i.e. the loss which is not
+	 * exceeded with probability level.
+	 * @param level The confidence level, e.g. 0.99.
+	 * @return -this.getQuantile(1 - level)
+	 */
+	public double getValueAtRisk(double level) {
+		return -getQuantile(1. - level);
+	}
+
+	/**
+	 * Returns the expected shortfall of this random variable, representing a profit and loss, i.e. the average loss of
+	 * the samples at or beyond the value at risk. The result is recorded for AAD: its derivative is the negative
+	 * conditional expectation of the derivative of this random variable within the tail, since the derivative of the
+	 * indicator of the tail vanishes almost surely.
+	 * @param level The confidence level, e.g. 0.975.
+	 * @return A deterministic RandomVariable holding the expected shortfall.
+	 */
+	public RandomVariable expectedShortfall(double level) {
+		double quantile = getQuantile(1. - level);
+		double[] x = getValues();
+		long numberOfTailSamples = x.length == 1 ? 1 : Arrays.stream(x).parallel().filter(value -> value <= quantile).count();
+
+		return customOperation(value -> value <= quantile ? value : 0., value -> value <= quantile ? 1. : 0.)
+				.expectation().mult(-(double)x.length / numberOfTailSamples);
+	}
+
 	@Override
 	public RandomVariable squared() {
-		return doReturn( new RandomVariable(applyArithmeticOperationBroadcast(a -> a * a, values)).addDependencies(this).setOperation(Operation.SQR)
-				.qualifyDifferentiability(this) );
+		return intern(Operation.SQR, Double.NaN, () ->
+			doReturn( new RandomVariable(applyArithmeticOperationBroadcast(SQUARE, getValues())).addDependencies(this).setOperation(Operation.SQR)
+					.qualifyDifferentiability(this) ), this);
 	}
 
 	private RandomVariable mSqrt = null;
 
 	@Override
 	public RandomVariable sqrt() {
-		if (mSqrt == null)
-			mSqrt = doReturn( new RandomVariable(applyArithmeticOperationBroadcast(a -> Math.sqrt(a), values)).addDependencies(this).setOperation(Operation.SQRT)
-					.qualifyDifferentiability(this) );
+		if (!isCacheValid(mSqrt))
+			mSqrt = intern(Operation.SQRT, Double.NaN, () ->
+				doReturn( new RandomVariable(applyArithmeticOperationBroadcast(ROOT, getValues())).addDependencies(this).setOperation(Operation.SQRT)
+						.qualifyDifferentiability(this) ), this);
 		return mSqrt;
 	}
 
@@ -557,9 +1110,11 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 
 	@Override
 	public RandomVariable exp() {
-		if (mExp == null)
-			mExp = doReturn( new RandomVariable(applyArithmeticOperationBroadcast(a -> Math.exp(a), values)).addDependencies(this).setOperation(Operation.EXP)
-					.qualifyDifferentiability(this) );
+		Precision precision = RandomVariable.precision;
+		if (!isCacheValid(mExp) || mExp.operationPrecision != precision)
+			mExp = intern(Operation.EXP, precision.ordinal(), () ->
+				doReturn( new RandomVariable(applyArithmeticOperationBroadcast(getExponential(precision), getValues())).addDependencies(this).setOperation(Operation.EXP)
+						.setPrecision(precision).qualifyDifferentiability(this) ), this);
 		return mExp;
 
 	}
@@ -568,54 +1123,145 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 
 	@Override
 	public RandomVariable log() {
-		if (mLog == null)
-			mLog = doReturn(  new RandomVariable(applyArithmeticOperationBroadcast(a -> a >  0 ? Math.log(a) :
-		                                                                                a == 0 ? Double.NEGATIVE_INFINITY
-		                                                                                       : Double.NaN,
-		                                                                           values))
-		                      .addDependencies(this).setOperation(Operation.LOG)
-		                      .qualifyDifferentiability(this) );
+		Precision precision = RandomVariable.precision;
+		if (!isCacheValid(mLog) || mLog.operationPrecision != precision)
+			mLog = intern(Operation.LOG, precision.ordinal(), () ->
+				doReturn(  new RandomVariable(applyArithmeticOperationBroadcast(getLogarithm(precision), getValues()))
+			                      .addDependencies(this).setOperation(Operation.LOG).setPrecision(precision)
+			                      .qualifyDifferentiability(this) ), this);
 		return mLog;
 	}
 
 	@Override
 	public RandomVariable add(double x) {
-		RandomVariable constant = getFactory().fromConstant(x);
-		return add(constant);
+		return intern(Operation.ADD, x, () -> applyBinary(Operation.ADD, SUM, getFactory().fromConstant(x)), this);
 	}
 
 	@Override
 	public RandomVariable add(RandomValue x) {
-		return doReturn( new RandomVariable(applyArithmeticOperationBroadcast( (a,b) -> a + b, values, ((RandomVariable)x).values))
-				.addDependencies(this, (RandomVariable)x).setOperation(Operation.ADD)
-				.qualifyDifferentiability(this, (RandomVariable)x) );
+		RandomVariable y = (RandomVariable)x;
+		return intern(Operation.ADD, Double.NaN, () -> applyBinary(Operation.ADD, SUM, y), this, y);
 	}
 
 	@Override
 	public RandomVariable sub(RandomValue x) {
-		return doReturn( new RandomVariable(applyArithmeticOperationBroadcast( (a,b) -> a - b, values, ((RandomVariable)x).values))
-				.addDependencies(this, (RandomVariable)x).setOperation(Operation.SUB)
-				.qualifyDifferentiability(this, (RandomVariable)x) );
+		RandomVariable y = (RandomVariable)x;
+		return intern(Operation.SUB, Double.NaN, () -> applyBinary(Operation.SUB, DIFFERENCE, y), this, y);
 	}
 
 	@Override
 	public RandomVariable mult(double x) {
-		RandomVariable constant = getFactory().fromConstant(x);
-		return mult(constant);
+		return intern(Operation.MUL, x, () -> applyBinary(Operation.MUL, PRODUCT, getFactory().fromConstant(x)), this);
 	}
 
 	@Override
 	public RandomVariable mult(RandomValue x) {
-		return doReturn( new RandomVariable(applyArithmeticOperationBroadcast( (a,b) -> a * b, values, ((RandomVariable)x).values))
-				.addDependencies(this, (RandomVariable)x).setOperation(Operation.MUL)
-				.qualifyDifferentiability(this, (RandomVariable)x) );
+		RandomVariable y = (RandomVariable)x;
+		return intern(Operation.MUL, Double.NaN, () -> applyBinary(Operation.MUL, PRODUCT, y), this, y);
 	}
 
 	@Override
 	public RandomVariable div(RandomValue x) {
-		return doReturn( new RandomVariable(applyArithmeticOperationBroadcast( (a,b) -> a / b, values, ((RandomVariable)x).values))
-				.addDependencies(this, (RandomVariable)x).setOperation(Operation.DIV)
-				.qualifyDifferentiability(this, (RandomVariable)x) );
+		RandomVariable y = (RandomVariable)x;
+		return intern(Operation.DIV, Double.NaN, () -> applyBinary(Operation.DIV, QUOTIENT, y), this, y);
+	}
+
+	/*
+	 * Applies a built-in binary operation. The scalar variants, e.g. add(double), record the scalar as a constant
+	 * leaf, but are interned by its value, as the leaf is new on every call.
+	 */
+	private RandomVariable applyBinary(Operation operation, DoubleBinaryOperator func, RandomVariable y) {
+		return doReturn( new RandomVariable(applyArithmeticOperationBroadcast(func, getValues(), y.getValues()))
+				.addDependencies(this, y).setOperation(operation).qualifyDifferentiability(this, y) );
+	}
+
+	/*
+	 * Fused operations. Each of them replaces a chain of built-in operations, or a custom operation, by a single pass
+	 * over the samples and a single node with a built-in adjoint rule.
+	 */
+
+	/**
+	 * Power with a constant exponent, this^exponent.
+	 * @param exponent The exponent.
+	 * @return New RandomVariable object holding the result.
+	 */
+	public RandomVariable pow(double exponent) {
+		return applyParametric(Operation.POW, exponent, getPowerFunction(exponent));
+	}
+
+	/**
+	 * Floor, max(this, floor), e.g. the payoff max(L - K, 0) of a caplet as exerciseValue.floor(0.0). The derivative
+	 * is the indicator of this &gt; floor, which is pathwise well defined, unlike the jump of choose().
+	 * @param floor The floor.
+	 * @return New RandomVariable object holding the result.
+	 */
+	public RandomVariable floor(double floor) {
+		return applyParametric(Operation.MAX, floor, getFloorFunction(floor));
+	}
+
+	/**
+	 * Cap, min(this, cap).
+	 * @param cap The cap.
+	 * @return New RandomVariable object holding the result.
+	 */
+	public RandomVariable cap(double cap) {
+		return applyParametric(Operation.MIN, cap, getCapFunction(cap));
+	}
+
+	/**
+	 * @return New RandomVariable object holding the absolute value of this.
+	 */
+	public RandomVariable abs() {
+		return applyParametric(Operation.ABS, Double.NaN, ABSOLUTE);
+	}
+
+	/**
+	 * @return New RandomVariable object holding the standard normal cumulative distribution function of this.
+	 */
+	public RandomVariable normalCdf() {
+		return applyParametric(Operation.NCDF, Double.NaN, NORMAL_CDF);
+	}
+
+	/**
+	 * @return New RandomVariable object holding the standard normal density of this.
+	 */
+	public RandomVariable normalPdf() {
+		return applyParametric(Operation.NPDF, Double.NaN, NORMAL_PDF);
+	}
+
+	private RandomVariable applyParametric(Operation operation, double parameter, DoubleUnaryOperator func) {
+		return intern(operation, parameter, () ->
+			doReturn( new RandomVariable(applyArithmeticOperationBroadcast(func, getValues())).addDependencies(this).setOperation(operation)
+					.setParameter(parameter).qualifyDifferentiability(this) ), this);
+	}
+
+	/**
+	 * Discounting with continuous compounding, this * exp(-rate * time). Note that accrue() compounds simply.
+	 * @param rate The rate.
+	 * @param time The time to discount over.
+	 * @return New RandomVariable object holding the result.
+	 */
+	public RandomVariable discountContinuously(RandomValue rate, double time) {
+		RandomVariable y = (RandomVariable)rate;
+		return intern(Operation.DISCOUNT, time, () ->
+			doReturn( new RandomVariable(applyArithmeticOperationBroadcast(getDiscountFunction(time), getValues(), y.getValues()))
+					.addDependencies(this, y).setOperation(Operation.DISCOUNT).setParameter(time)
+					.qualifyDifferentiability(this, y) ), this, y);
+	}
+
+	/**
+	 * Fused multiply-add, this * factor + summand, in one pass. The product is rounded before the addition, as for
+	 * this.mult(factor).add(summand).
+	 * @param factor The factor.
+	 * @param summand The summand.
+	 * @return New RandomVariable object holding the result.
+	 */
+	public RandomVariable multAdd(RandomValue factor, RandomValue summand) {
+		RandomVariable y = (RandomVariable)factor, z = (RandomVariable)summand;
+		return intern(Operation.FMA, Double.NaN, () ->
+			doReturn( new RandomVariable(applyArithmeticOperationBroadcast(MULTIPLY_ADD, getValues(), y.getValues(), z.getValues()))
+					.addDependencies(this, y, z).setOperation(Operation.FMA)
+					.qualifyDifferentiability(this, y, z) ), this, y, z);
 	}
 
 	/**
@@ -624,8 +1270,129 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return New RandomVariable object holding the result.
 	 */
 	public RandomVariable div(double x) {
-		RandomVariable constant = getFactory().fromConstant(x);
-		return div(constant);
+		return intern(Operation.DIV, x, () -> applyBinary(Operation.DIV, QUOTIENT, getFactory().fromConstant(x)), this);
+	}
+
+	/*
+	 * In-place operations. They overwrite the sample values of this random variable instead of creating a new one, and
+	 * are therefore only supported on non-recording random variables, outside of a RandomVariableTape. This random
+	 * variable gets a new id, its cached results are dropped, and it is no longer returned as a cached result of
+	 * another random variable. Random variables whose values are read by a recorded graph, as constant operands of
+	 * recorded operations or as inputs of a RandomVariableTape, cannot be modified in place either, since the
+	 * partial derivatives and the rematerialization of their consumers would silently use the new values; an
+	 * in-place operation on a copy, e.g. x.add(0.0), does not affect them. The same holds for random variables sharing
+	 * their values with finmath-lib.
+	 */
+
+	/**
+	 * In-place addition, this = this + x.
+	 * @param x summand
+	 * @return this
+	 */
+	public RandomVariable addAssign(RandomValue x) {
+		return assign(SUM, (RandomVariable)x);
+	}
+
+	/**
+	 * Same as this.addAssign(this.getFactory().fromConstant(x))
+	 * @param x summand
+	 * @return this
+	 */
+	public RandomVariable addAssign(double x) {
+		return assign(a -> a + x);
+	}
+
+	/**
+	 * In-place multiplication, this = this * x.
+	 * @param x factor
+	 * @return this
+	 */
+	public RandomVariable multAssign(RandomValue x) {
+		return assign(PRODUCT, (RandomVariable)x);
+	}
+
+	/**
+	 * Same as this.multAssign(this.getFactory().fromConstant(x))
+	 * @param x factor
+	 * @return this
+	 */
+	public RandomVariable multAssign(double x) {
+		return assign(a -> a * x);
+	}
+
+	/**
+	 * Fused in-place multiply-add, this = this + x * y, e.g. to accumulate discounted cash flows.
+	 * @param x first factor
+	 * @param y second factor
+	 * @return this
+	 */
+	public RandomVariable addProduct(RandomValue x, RandomValue y) {
+		return assign((a, b, c) -> a + b * c, (RandomVariable)x, (RandomVariable)y);
+	}
+
+	/**
+	 * Same as this.addProduct(x, this.getFactory().fromConstant(y))
+	 * @param x first factor
+	 * @param y second factor
+	 * @return this
+	 */
+	public RandomVariable addProduct(RandomValue x, double y) {
+		return assign((a, b) -> a + b * y, (RandomVariable)x);
+	}
+
+	/**
+	 * In-place accrual with simple compounding, this = this * (1 + rate * periodLength).
+	 * @param rate The rate.
+	 * @param periodLength The length of the accrual period.
+	 * @return this
+	 */
+	public RandomVariable accrue(RandomValue rate, double periodLength) {
+		return assign((a, r) -> a * (1. + r * periodLength), (RandomVariable)rate);
+	}
+
+	private RandomVariable assign(DoubleUnaryOperator func) {
+		double[] x = beginAssignment();
+		if (x.length == 1)
+			x[0] = func.applyAsDouble(x[0]);
+		else
+			IntStream.range(0, x.length).parallel().forEach(i -> x[i] = func.applyAsDouble(x[i]));
+		return this;
+	}
+
+	private RandomVariable assign(DoubleBinaryOperator func, RandomVariable y) {
+		return assign((a, b, c) -> func.applyAsDouble(a, b), y, y);
+	}
+
+	private RandomVariable assign(DoubleTernaryOperator func, RandomVariable y, RandomVariable z) {
+		double[] x = beginAssignment(), op2 = y.getValues(), op3 = z.getValues();
+		int s = x.length;
+		if (s > 1 && (op2.length == 1 || op2.length == s) && (op3.length == 1 || op3.length == s))
+			IntStream.range(0, s).parallel().forEach(i -> x[i] = func.applyAsDouble(x[i], op2.length == 1 ? op2[0] : op2[i],
+					                                                                      op3.length == 1 ? op3[0] : op3[i]));
+		else
+			values = applyArithmeticOperationBroadcast(func, x, op2, op3);    // a deterministic accumulator becomes stochastic
+		return this;
+	}
+
+	/**
+	 * Checks that this random variable may be modified in place, and invalidates everything derived from its values.
+	 * @return The sample values to be overwritten.
+	 */
+	private double[] beginAssignment() {
+		if (recording || RandomVariableTape.isRecording())
+			throw new UnsupportedOperationException("In-place operations are only supported on non-recording random variables outside of a RandomVariableTape.");
+		if (recordedOperand)
+			throw new UnsupportedOperationException("In-place operations are not supported on random variables read by a recorded graph.");
+		if (sharedValues)
+			throw new UnsupportedOperationException("In-place operations are not supported on random variables sharing their values with finmath-lib.");
+
+		double[] x = getValues();
+		id = nextId.incrementAndGet();
+		modified = true;
+		deterministic = false;
+		mExp = mLog = mSqrt = null;
+		mExpectation = mVariance = mStandardError = null;
+		return x;
 	}
 
 	/**
@@ -634,7 +1401,7 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return The determined parameter h.
 	 */
 	protected double getH() {
-		return Math.sqrt(this.variance().values.get(0)) * hFactor;
+		return Math.sqrt(this.variance().asFloatingPoint()) * hFactor;
 	}
 
 	/**
@@ -642,7 +1409,7 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @param h
 	 * @return indicator function
 	 */
-	protected static TriFunction<Double, Double, Double, Double> getIndicatorFunction(double h) {
+	protected static DoubleTernaryOperator getIndicatorFunction(double h) {
 		return ((x, y, z) -> {
 			double ratio = x/h;
 			return (ratio <= -1) ? z :
@@ -660,17 +1427,17 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 
 			if (debugMode) {
 				// Output how many sample points are within the call spread
-				long number = values.parallelStream().filter(o -> (Math.abs(o) <= h)).count();
+				long number = Arrays.stream(getValues()).parallel().filter(o -> (Math.abs(o) <= h)).count();
 				writeDebug("samples within call spread: " + Long.toString(number));
 			}
 
-			return doReturn( new RandomVariable(applyArithmeticOperationBroadcast(getIndicatorFunction(h), values,
-				                                                                  ((RandomVariable)valueIfNonNegative).values,
-				                                                                  ((RandomVariable)valueIfNegative).values))
-				             .addDependencies(this, (RandomVariable)valueIfNonNegative, (RandomVariable)valueIfNegative)
+			RandomVariable y = (RandomVariable)valueIfNonNegative, z = (RandomVariable)valueIfNegative;
+			return intern(Operation.CHO, h, () ->
+				doReturn( new RandomVariable(applyArithmeticOperationBroadcast(getIndicatorFunction(h), getValues(), y.getValues(), z.getValues()))
+				             .addDependencies(this, y, z)
 				             .setOperation(Operation.CHO)
 				             .setH(h)
-				             .qualifyDifferentiability(this, (RandomVariable)valueIfNonNegative, (RandomVariable)valueIfNegative) );
+				             .qualifyDifferentiability(this, y, z) ), this, y, z);
 
 
 		} else {
@@ -686,7 +1453,7 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return A RandomVariable instance holding the result, not implementing RandomVariableDifferentiable.
 	 */
 	public RandomVariable customOperation(Function<Double, Double> func) {
-		return doReturn( new RandomVariable( this.applyArithmeticOperationBroadcast(func, this.values) )
+		return doReturn( new RandomVariable( applyArithmeticOperationBroadcast(primitive(func), this.getValues()) )
 				         .removeDifferentiability() );
 	}
 
@@ -697,8 +1464,8 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return A RandomVariable instance holding the result.
 	 */
 	public RandomVariable customOperation(Function<Double, Double> func, Function<Double, Double> derivative) {
-		return doReturn( new RandomVariable( this.applyArithmeticOperationBroadcast(func, this.values) )
-				         .setCustomFunctionDerivative(derivative)
+		return doReturn( new RandomVariable( applyArithmeticOperationBroadcast(primitive(func), this.getValues()) )
+				         .setCustomFunction(func).setCustomFunctionDerivative(derivative)
 				         .addDependencies(this).setOperation(Operation.CUSTOMUNI).qualifyDifferentiability(this) );
 	}
 
@@ -709,7 +1476,7 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return A RandomVariable instance holding the result, not implementing RandomVariableDifferentiable.
 	 */
 	public RandomVariable customOperation(BiFunction<Double, Double, Double> func, RandomVariable Y) {
-		return doReturn( new RandomVariable( this.applyArithmeticOperationBroadcast(func, this.values, Y.values) )
+		return doReturn( new RandomVariable( applyArithmeticOperationBroadcast(primitive(func), this.getValues(), Y.getValues()) )
 				         .removeDifferentiability() );
 	}
 
@@ -723,8 +1490,8 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 */
 	public RandomVariable customOperation(BiFunction<Double, Double, Double> func, RandomVariable Y, BiFunction<Double, Double, Double> derivativeX,
 			BiFunction<Double, Double, Double> derivativeY) {
-		return doReturn( new RandomVariable( this.applyArithmeticOperationBroadcast(func, this.values, Y.values) )
-				         .setCustomBiFunctionDerivatives(derivativeX, derivativeY)
+		return doReturn( new RandomVariable( applyArithmeticOperationBroadcast(primitive(func), this.getValues(), Y.getValues()) )
+				         .setCustomFunction(func).setCustomBiFunctionDerivatives(derivativeX, derivativeY)
 				         .addDependencies(this, Y).setOperation(Operation.CUSTOMBI).qualifyDifferentiability(this, Y) );
 	}
 
@@ -736,7 +1503,7 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	 * @return A RandomVariable instance holding the result, not implementing RandomVariableDifferentiable.
 	 */
 	public RandomVariable customOperation(TriFunction<Double, Double, Double, Double> func, RandomVariable Y, RandomVariable Z) {
-		return doReturn( new RandomVariable( this.applyArithmeticOperationBroadcast(func, this.values, Y.values, Z.values) )
+		return doReturn( new RandomVariable( applyArithmeticOperationBroadcast(primitive(func), this.getValues(), Y.getValues(), Z.getValues()) )
 				         .removeDifferentiability() );
 	}
 
@@ -753,8 +1520,8 @@ public class RandomVariable implements ConvertableToFloatingPoint, RandomValue,
 	public RandomVariable customOperation(TriFunction<Double, Double, Double, Double> func, RandomVariable Y, RandomVariable Z,
 			TriFunction<Double, Double, Double, Double> derivativeX, TriFunction<Double, Double, Double, Double> derivativeY,
 			TriFunction<Double, Double, Double, Double> derivativeZ) {
-		return doReturn( new RandomVariable( this.applyArithmeticOperationBroadcast(func, this.values, Y.values, Z.values) )
-				         .setCustomTriFunctionDerivatives(derivativeX, derivativeY, derivativeZ)
+		return doReturn( new RandomVariable( applyArithmeticOperationBroadcast(primitive(func), this.getValues(), Y.getValues(), Z.getValues()) )
+				         .setCustomFunction(func).setCustomTriFunctionDerivatives(derivativeX, derivativeY, derivativeZ)
 				         .addDependencies(this, Y, Z).setOperation(Operation.CUSTOMTRI).qualifyDifferentiability(this, Y) );
 	}
 
@@ -1,25 +1,78 @@
 package info.quantlab.computationfinance.lecture.assignment2;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.NavigableSet;
-import java.util.TreeSet;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
 
 import net.finmath.aadexperiments.randomvalue.RandomValue;
 import net.finmath.aadexperiments.randomvalue.RandomValueDifferentiable;
+import net.finmath.functions.NormalDistribution;
 
 /**
  * A class representing instances of RandomVariable that were constructed from other random variables
  * through application of built-in or custom differentiable arithmetic operations, with respect to which
- * AAD can be performed by means of the method getDerivativeWithRespectTo().
+ * AAD can be performed by means of the method getDerivativeWithRespectTo(). Derivatives are plain values, which are
+ * not recorded themselves; nested AAD is replaced by getHessianVectorProduct() and getHessian().
  * @author Jakob Ullmann
  *
  */
 public final class RandomVariableDifferentiable extends RandomVariable implements RandomValueDifferentiable {
 
-	protected HashMap<Long, RandomVariable> derivatives = null;    // map holding computed derivatives
+	/**
+	 * If true, the reverse sweep processes independent nodes concurrently, see computeDerivatives(). The order in
+	 * which contributions are accumulated, and hence the rounding of the derivatives, may then differ between runs.
+	 */
+	public static volatile boolean parallelReverseSweep = false;
+
+	/**
+	 * If positive, the sequential reverse sweep is executed tile by tile, see computeDerivatives(): the number of
+	 * samples per tile, e.g. 2048, such that the tiles of the vectors touched by a segment of nodes stay in the L2 cache.
+	 */
+	public static volatile int reverseSweepTileSize = 0;
+
+	/**
+	 * The maximum number of nodes swept tile by tile before their adjoints are released.
+	 */
+	private static final int maximumNodesPerSegment = 64;
+
+	/**
+	 * Striped locks guarding the accumulation into adjoints, indexed by the ids of the nodes.
+	 */
+	private static final Object[] adjointLocks = new Object[64];
+	static {
+		for (int i = 0; i < adjointLocks.length; i++)
+			adjointLocks[i] = new Object();
+	}
+
+	protected Map<Long, RandomVariable> derivatives = null;    // map holding computed derivatives
+
+	/**
+	 * Ids of the intermediate nodes whose derivatives are retained after the reverse sweep, in addition to the leaves.
+	 */
+	private final Set<Long> retained = new HashSet<>();
+
+	/**
+	 * Ids of the nodes whose adjoints are accumulated as scalars during the current reverse sweep, see
+	 * getScalarAdjointNodes().
+	 */
+	private Set<Long> scalarAdjoints = Collections.emptySet();
 
 	/**
 	 * Creates a shallow copy and implements RandomVariableDifferentiable, if possible; throws UnsupportedOperationException otherwise.
@@ -33,60 +86,362 @@ public final class RandomVariableDifferentiable extends RandomVariable implement
 	}
 
 	/**
-	 * Creates a RandomVariableDifferentiable instance with the ArrayList passed as argument `values'.
+	 * Creates a RandomVariableDifferentiable instance with the array passed as argument `values'.
 	 * Important: This does not clone values, but it copies the reference. Use RandomVariable.factory().fromArray() for that purpose.
 	 * @param values
 	 */
-	protected RandomVariableDifferentiable(ArrayList<Double> values) {
+	protected RandomVariableDifferentiable(double[] values) {
 		this.values = values;
 		simplify();
 	}
 
+	/**
+	 * Reverse sweep. The adjoint of a node is final once all of its consumers have been processed; after it has been
+	 * propagated to the dependencies, it is released, unless the node is a leaf, the root, or has been requested
+	 * explicitly. Peak memory is thus bounded by the width of the graph's frontier rather than its size, and the
+	 * sample buffers of released adjoints are returned to the SampleBufferPool, to be reused by the next sweep.
+	 *
+	 * Nodes are processed in descending order of their ids, unless RandomVariableDifferentiable.parallelReverseSweep
+	 * is set: then every node is processed as a task of the common ForkJoinPool as soon as all of its consumers have
+	 * been processed, such that independent branches of the graph, e.g. many payoffs sharing a Brownian increment,
+	 * are processed concurrently.
+	 *
+	 * If RandomVariableDifferentiable.reverseSweepTileSize is set instead, the sweep exploits that all operations but
+	 * the expectation are pathwise: consecutive nodes are grouped into segments, and each segment is swept over one
+	 * tile of paths after another, the tiles being processed in parallel. Expectations, the root and nodes with scalar
+	 * adjoints need all paths and are processed in between the segments, as reduction barriers.
+	 *
+	 * If the sweep fails, the derivatives are discarded, such that the next request sweeps again.
+	 */
 	private void computeDerivatives() {
 
-		derivatives = new HashMap<>();
+		derivatives = new ConcurrentHashMap<>();
+
+		Collection<RandomVariable> nodes = getGraph(this);     // descending ids, i.e. consumers before their dependencies
+		scalarAdjoints = getScalarAdjointNodes(nodes);
 
-		NavigableSet<RandomVariable> nodesOutstanding = new TreeSet<>( (x, y) -> Long.signum(x.id - y.id) );
-		RandomVariable root = this;
+		Map<Long, AtomicInteger> remainingConsumers = new HashMap<>();
+		for (RandomVariable node : nodes)
+			for (RandomVariable dependency : node.deps)
+				remainingConsumers.computeIfAbsent(dependency.id, key -> new AtomicInteger()).incrementAndGet();
 
-		derivatives.put(root.id, getFactory().one());
-		nodesOutstanding.add(root);
+		derivatives.put(id, new RandomVariable(new double[] { 1. }));
 
-		while (!nodesOutstanding.isEmpty()) {
-			RandomVariable node = nodesOutstanding.pollLast();
-			processNode(node);
-			nodesOutstanding.addAll(node.deps);
+		try {
+			int numberOfSamples = reverseSweepTileSize > 0 && !parallelReverseSweep ? getNumberOfSamples(nodes) : 1;
+			if (parallelReverseSweep)
+				new ParallelSweep(remainingConsumers).run(this, nodes);
+			else if (reverseSweepTileSize > 0 && numberOfSamples > reverseSweepTileSize)
+				computeDerivativesTiled(nodes, numberOfSamples, remainingConsumers);
+			else
+				for (RandomVariable node : nodes) {
+					processNode(node);
+					completeNode(node, remainingConsumers);
+				}
+		} catch (RuntimeException | Error e) {
+			derivatives = null;                                   // partial adjoints must not be taken for a completed sweep
+			throw e;
+		} finally {
+			scalarAdjoints = Collections.emptySet();
 		}
 	}
 
-	private RandomVariable lookupOrInitialize(RandomVariable key) {
-		if (!derivatives.containsKey(key.id))
-			derivatives.put(key.id, getFactory().zero());
-		return derivatives.get(key.id);
+	/**
+	 * Releases the adjoint of a processed node, unless it is a leaf, the root or retained, and counts down the
+	 * remaining consumers of its dependencies.
+	 * @return The dependencies whose consumers have all been processed.
+	 */
+	private List<RandomVariable> completeNode(RandomVariable node, Map<Long, AtomicInteger> remainingConsumers) {
+		if (node.operation != null && node.id != id && !retained.contains(node.id))
+			release(derivatives.remove(node.id));
+
+		List<RandomVariable> ready = new ArrayList<>(node.deps.size());
+		for (RandomVariable dependency : node.deps)
+			if (remainingConsumers.get(dependency.id).decrementAndGet() == 0)
+				ready.add(dependency);
+		return ready;
 	}
 
-	private RandomVariable lastNode           = null; // Caching
-	private RandomVariable lastNodeDerivative = null;
+	/**
+	 * @return The number of samples of the stochastic leaves of the graph, or 1 if all leaves are deterministic.
+	 */
+	private static int getNumberOfSamples(Collection<RandomVariable> nodes) {
+		int numberOfSamples = 1;
+		for (RandomVariable node : nodes)
+			if (node.operation == null)
+				numberOfSamples = Math.max(numberOfSamples, node.getValues().length);
+		return numberOfSamples;
+	}
 
-	private void pushDerivative(RandomVariable node, RandomVariable key, RandomVariable value) {
-		if (lastNode != node) {                                                                 // Update cache
-			lastNode = node;
-			lastNodeDerivative = lookupOrInitialize(node);
+	private void computeDerivativesTiled(Collection<RandomVariable> nodes, int numberOfSamples, Map<Long, AtomicInteger> remainingConsumers) {
+		List<RandomVariable> segment = new ArrayList<>();
+		for (RandomVariable node : nodes) {
+			if (node.operation == null)
+				completeNode(node, remainingConsumers);               // leaves have no adjoint rule
+			else if (node.operation == Operation.EXPECT || hasScalarAdjoint(node)) {
+				sweepSegment(segment, numberOfSamples, remainingConsumers);
+				processNode(node);
+				completeNode(node, remainingConsumers);
+			} else {
+				segment.add(node);
+				if (segment.size() == maximumNodesPerSegment)
+					sweepSegment(segment, numberOfSamples, remainingConsumers);
+			}
 		}
+		sweepSegment(segment, numberOfSamples, remainingConsumers);
+	}
 
-		derivatives.put(key.id, lookupOrInitialize(key).add(value.mult(lastNodeDerivative)));   // add new value
+	private void sweepSegment(List<RandomVariable> segment, int numberOfSamples, Map<Long, AtomicInteger> remainingConsumers) {
+		if (segment.isEmpty())
+			return;
+		new TiledSegment(segment, numberOfSamples).run();
+		for (RandomVariable node : segment)
+			completeNode(node, remainingConsumers);
+		segment.clear();
 	}
 
-	private void pushDerivative(RandomVariable node, RandomVariable key, double value) {
-		pushDerivative(node, key, getFactory().fromConstant(value));
+	private boolean hasScalarAdjoint(RandomVariable node) {
+		return node.id == id || scalarAdjoints.contains(node.id);
+	}
+
+	/**
+	 * A segment of pathwise nodes, swept tile by tile. Before the sweep, the adjoints of the nodes and their
+	 * dependencies are expanded to all paths, such that the tiles write to disjoint parts of them; contributions to
+	 * scalar adjoints are summed per tile and added in the order of the tiles, such that the result does not depend on
+	 * the scheduling.
+	 */
+	private class TiledSegment {
+		private final List<RandomVariable> nodes;
+		private final int numberOfSamples;
+		private final int numberOfTiles;
+		private final Map<Long, double[]> tileSums = new HashMap<>();
+
+		TiledSegment(List<RandomVariable> nodes, int numberOfSamples) {
+			this.nodes = nodes;
+			this.numberOfSamples = numberOfSamples;
+			this.numberOfTiles = (numberOfSamples + reverseSweepTileSize - 1) / reverseSweepTileSize;
+		}
+
+		void run() {
+			for (RandomVariable node : nodes) {
+				expand(node);
+				for (RandomVariable dependency : node.deps) {
+					dependency.getValues();                           // rematerialize before the tiles read them
+					if (hasScalarAdjoint(dependency)) {
+						lookupOrInitialize(dependency);
+						tileSums.putIfAbsent(dependency.id, new double[numberOfTiles]);
+					} else
+						expand(dependency);
+				}
+			}
+
+			IntStream.range(0, numberOfTiles).parallel().forEach(tile -> {
+				int from = tile * reverseSweepTileSize, to = Math.min(from + reverseSweepTileSize, numberOfSamples);
+				double[] buffer = new double[to - from];
+				for (RandomVariable node : nodes)
+					processTile(node, tile, from, to, buffer);
+			});
+
+			for (Map.Entry<Long, double[]> tileSum : tileSums.entrySet()) {
+				double sum = 0;
+				for (double contribution : tileSum.getValue())
+					sum += contribution;
+				derivatives.get(tileSum.getKey()).values[0] += sum / numberOfSamples;
+			}
+		}
+
+		/*
+		 * Replaces a deterministic adjoint by one holding a sample buffer.
+		 */
+		private void expand(RandomVariable key) {
+			RandomVariable adjoint = lookupOrInitialize(key);
+			if (adjoint.values.length == numberOfSamples)
+				return;
+			double[] values = SampleBufferPool.acquire(numberOfSamples);
+			Arrays.fill(values, adjoint.values[0]);
+			RandomVariable expanded = new RandomVariable(ONE);
+			expanded.values = values;
+			expanded.deterministic = false;
+			derivatives.put(key.id, expanded);
+		}
+
+		private void processTile(RandomVariable node, int tile, int from, int to, double[] buffer) {
+			double[] adjoint = derivatives.get(node.id).values;
+			for (int k = 0; k < node.deps.size(); k++) {
+				Partial partial = getPartial(node, k);
+				push(node.deps.get(k), partial.evaluate(buffer, from, to), partial.isTemporary() ? from : 0, adjoint, tile, from, to);
+			}
+		}
+
+		/*
+		 * Adds partial * adjoint on the paths [from, to) to the adjoint of key, where partial holds the path from at
+		 * index from - offset, or its contribution to the expectation if the adjoint of key is a scalar.
+		 */
+		private void push(RandomVariable key, double[] partial, int offset, double[] adjoint, int tile, int from, int to) {
+			if (hasScalarAdjoint(key)) {
+				double sum = 0;
+				for (int i = from; i < to; i++)
+					sum += (partial.length == 1 ? partial[0] : partial[i - offset]) * (adjoint.length == 1 ? adjoint[0] : adjoint[i]);
+				tileSums.get(key.id)[tile] += sum;
+			} else {
+				double[] sum = derivatives.get(key.id).values;
+				for (int i = from; i < to; i++)
+					sum[i] += (partial.length == 1 ? partial[0] : partial[i - offset]) * (adjoint.length == 1 ? adjoint[0] : adjoint[i]);
+			}
+		}
+	}
+
+	/**
+	 * Dependency-counted parallel reverse sweep. Tasks are submitted rather than forked and joined, such that the
+	 * depth of the stack does not grow with the length of the graph.
+	 */
+	private class ParallelSweep {
+		private final Map<Long, AtomicInteger> remainingConsumers;
+		private final AtomicInteger pendingTasks = new AtomicInteger();
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+		private final CompletableFuture<Void> settled = new CompletableFuture<>();
+
+		ParallelSweep(Map<Long, AtomicInteger> remainingConsumers) {
+			this.remainingConsumers = remainingConsumers;
+		}
+
+		/*
+		 * Released values are rematerialized up front, as the tasks must not rematerialize them concurrently. Returns
+		 * once no task is running any more, such that a failure does not leave tasks writing to the derivatives.
+		 */
+		void run(RandomVariable root, Collection<RandomVariable> nodes) {
+			for (RandomVariable node : nodes)
+				if (node.operation != null)
+					node.getValues();
+
+			submit(root);
+			settled.join();
+
+			Throwable e = failure.get();
+			if (e instanceof RuntimeException)
+				throw (RuntimeException)e;
+			if (e instanceof Error)
+				throw (Error)e;
+		}
+
+		/*
+		 * Every task counts itself as pending until it has submitted the dependencies it completed; after a failure,
+		 * the remaining tasks return without processing their node.
+		 */
+		private void submit(RandomVariable node) {
+			pendingTasks.incrementAndGet();
+			ForkJoinPool.commonPool().execute(() -> {
+				try {
+					if (failure.get() == null) {
+						processNode(node);
+						for (RandomVariable dependency : completeNode(node, remainingConsumers))
+							submit(dependency);
+					}
+				} catch (RuntimeException | Error e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					if (pendingTasks.decrementAndGet() == 0)
+						settled.complete(null);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Infers which adjoints may be kept as scalars: if this node is deterministic, its derivative with respect to a
+	 * deterministic node is the expectation of the pathwise derivative. If, in addition, the whole graph below that
+	 * node is deterministic, all partial derivatives it is multiplied with on the way to the leaves are deterministic,
+	 * such that taking the expectation commutes with the rest of the sweep. The adjoint of such a node is then
+	 * accumulated as the expectation of each contribution, a single fused dot product, instead of a vector.
+	 * @param nodes The nodes of the graph, in descending order of their ids.
+	 * @return The ids of the nodes with scalar adjoints.
+	 */
+	private Set<Long> getScalarAdjointNodes(Collection<RandomVariable> nodes) {
+		return isDeterministic() ? getDeterministicSubgraphs(nodes) : Collections.emptySet();
+	}
+
+	/**
+	 * @param nodes The nodes of a graph, in descending order of their ids.
+	 * @return The ids of the deterministic nodes whose whole graph is deterministic.
+	 */
+	private static Set<Long> getDeterministicSubgraphs(Collection<RandomVariable> nodes) {
+		ArrayList<RandomVariable> ascending = new ArrayList<>(nodes);
+		Collections.reverse(ascending);                        // dependencies before their consumers
+
+		Set<Long> scalar = new HashSet<>();
+		for (RandomVariable node : ascending) {
+			boolean deterministic = node.isDeterministic();
+			for (RandomVariable dependency : node.deps)
+				deterministic &= scalar.contains(dependency.id);
+			if (deterministic)
+				scalar.add(node.id);
+		}
+		return scalar;
+	}
+
+	private static void release(RandomVariable adjoint) {
+		if (adjoint != null)
+			SampleBufferPool.release(adjoint.values);
+	}
+
+	private RandomVariable lookupOrInitialize(RandomVariable key) {
+		return derivatives.computeIfAbsent(key.id, k -> new RandomVariable(new double[] { 0. }));
+	}
+
+	private static final double[] ONE       = { 1. };
+	private static final double[] MINUS_ONE = { -1. };
+
+	/*
+	 * The adjoints are accumulated sample-wise into plain random variables, which are not recorded, such that released
+	 * adjoints do not remain reachable through the dependencies of their successors. An adjoint holding a sample
+	 * buffer is owned by the sweep and updated in place; deterministic adjoints are replaced when they become
+	 * stochastic. The adjoint of node is final when it is pushed.
+	 */
+	private void pushDerivative(RandomVariable node, RandomVariable key, double[] partial) {
+		accumulate(key, partial, lookupOrInitialize(node).getValues());
 	}
 
 	private void pushExpectation(RandomVariable node, RandomVariable key) {
-		RandomVariable nodeDerivative = lookupOrInitialize(node);
-		derivatives.put(key.id, lookupOrInitialize(key).add(nodeDerivative.expectation()));   // add new value
+		accumulate(key, ONE, new double[] { average(lookupOrInitialize(node).getValues()) });
+	}
+
+	/*
+	 * Adds partial * adjoint to the adjoint of key, or its expectation if the adjoint of key is a scalar.
+	 */
+	private void accumulate(RandomVariable key, double[] partial, double[] adjoint) {
+		synchronized (adjointLocks[(int)(key.id & (adjointLocks.length - 1))]) {
+			accumulateUnsynchronized(key, partial, adjoint);
+		}
 	}
 
-	private static TriFunction<Double, Double, Double, Double> getIndicatorDerivativeX(double h) {
+	private void accumulateUnsynchronized(RandomVariable key, double[] partial, double[] adjoint) {
+		RandomVariable derivative = lookupOrInitialize(key);
+		double[] sum = derivative.values;
+		int s = sum.length;
+		if (s == 1 && scalarAdjoints.contains(key.id)) {
+			sum[0] += dot(partial, adjoint);
+		} else if (s > 1 && (partial.length == 1 || partial.length == s) && (adjoint.length == 1 || adjoint.length == s)) {
+			IntStream.range(0, s).parallel().forEach(i -> sum[i] += (partial.length == 1 ? partial[0] : partial[i])
+			                                                      * (adjoint.length == 1 ? adjoint[0] : adjoint[i]));
+			derivative.deterministic = false;
+		} else
+			derivatives.put(key.id, new RandomVariable(applyArithmeticOperationBroadcast((a, b, c) -> a + b * c,   // add new value
+					sum, partial, adjoint)));
+	}
+
+	/**
+	 * @return The expectation of the sample-wise product of a and b.
+	 */
+	private static double dot(double[] a, double[] b) {
+		if (a.length == 1 || b.length == 1)
+			return (a.length == 1 ? a[0] : average(a)) * (b.length == 1 ? b[0] : average(b));
+		if (a.length != b.length)
+			throw new UnsupportedOperationException(MessageFormat.format("dot called with different operand dimensions: {0}, {1}.",
+					                                a.length, b.length));
+		return IntStream.range(0, a.length).parallel().mapToDouble(i -> a[i] * b[i]).sum() / a.length;
+	}
+
+	private static DoubleTernaryOperator getIndicatorDerivativeX(double h) {
 		return ((_x, _y, _z) -> {
 			if      (_x <= -h)   return 0.;
 			else if (_x <= h)    return (_y - _z)/(2.*h);
@@ -94,7 +449,7 @@ public final class RandomVariableDifferentiable extends RandomVariable implement
 		});
 	}
 
-	private static TriFunction<Double, Double, Double, Double> getIndicatorDerivativeY(double h) {
+	private static DoubleTernaryOperator getIndicatorDerivativeY(double h) {
 		return ((_x, _y, _z) -> {
 			if      (_x <= -h)   return 0.;
 			else if (_x <= h)    return (h + _x)/(2.*h);
@@ -102,7 +457,7 @@ public final class RandomVariableDifferentiable extends RandomVariable implement
 		});
 	}
 
-	private static TriFunction<Double, Double, Double, Double> getIndicatorDerivativeZ(double h) {
+	private static DoubleTernaryOperator getIndicatorDerivativeZ(double h) {
 		return ((_x, _y, _z) -> {
 			if      (_x <= -h)   return 1.;
 			else if (_x <= h)    return (h - _x)/(2.*h);
@@ -110,110 +465,260 @@ public final class RandomVariableDifferentiable extends RandomVariable implement
 		});
 	}
 
+	/*
+	 * Partial derivatives of the fused operations, shared by processNode() and the tiled sweep.
+	 */
+	private static DoubleUnaryOperator getPowerDerivative(double exponent) {
+		return a -> exponent == 0 ? 0. : exponent * Math.pow(a, exponent - 1.);
+	}
+
+	private static DoubleUnaryOperator getFloorDerivative(double floor) {
+		return a -> a > floor ? 1. : 0.;
+	}
+
+	private static DoubleUnaryOperator getCapDerivative(double cap) {
+		return a -> a < cap ? 1. : 0.;
+	}
+
+	private static DoubleUnaryOperator getDiscountFactor(double time) {
+		return r -> Math.exp(-r * time);
+	}
+
+	private static final DoubleUnaryOperator SIGN                  = a -> Math.signum(a);
+	private static final DoubleUnaryOperator NORMAL_PDF            = a -> NormalDistribution.density(a);
+	private static final DoubleUnaryOperator NORMAL_PDF_DERIVATIVE = a -> -a * NormalDistribution.density(a);
+
 	private void processNode(RandomVariable node) {
 		if (node.operation == null) return;
 
+		if (node.operation == Operation.EXPECT) {
+			pushExpectation(node, node.deps.get(0));
+			return;
+		}
+		for (int k = 0; k < node.deps.size(); k++) {
+			Partial partial = getPartial(node, k);
+			double[] values = partial.evaluate();
+			pushDerivative(node, node.deps.get(k), values);
+			if (partial.isTemporary())
+				SampleBufferPool.release(values);
+		}
+	}
+
+	/**
+	 * A partial derivative of a node with respect to one of its dependencies: either sample values which exist
+	 * anyway, i.e. a constant or the values of the node or of a dependency, or a pathwise function of such values,
+	 * which is evaluated into a temporary buffer, on all paths or on a tile of paths.
+	 */
+	private static final class Partial {
+		private final double[] shared;
+		private final DoubleTernaryOperator operator;
+		private final double[] a, b, c;
+
+		private Partial(double[] shared) {
+			this.shared = shared;
+			this.operator = null;
+			this.a = this.b = this.c = null;
+		}
+
+		private Partial(DoubleTernaryOperator operator, double[] a, double[] b, double[] c) {
+			this.shared = null;
+			this.operator = operator;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		private Partial(DoubleUnaryOperator operator, double[] a) {
+			this((u, v, w) -> operator.applyAsDouble(u), a, a, a);
+		}
+
+		private Partial(DoubleBinaryOperator operator, double[] a, double[] b) {
+			this((u, v, w) -> operator.applyAsDouble(u, v), a, b, a);
+		}
+
+		/**
+		 * @return true if evaluate() returns a temporary buffer, to be returned to the SampleBufferPool after use.
+		 */
+		boolean isTemporary() {
+			return shared == null;
+		}
+
+		double[] evaluate() {
+			return shared != null ? shared : applyArithmeticOperationBroadcast(operator, a, b, c);
+		}
+
+		/**
+		 * Evaluates the partial derivative on the paths [from, to), broadcasting deterministic operands.
+		 * @return The shared values, indexed by path, or buffer, holding path i at index i - from.
+		 */
+		double[] evaluate(double[] buffer, int from, int to) {
+			if (shared != null)
+				return shared;
+			for (int i = from; i < to; i++)
+				buffer[i - from] = operator.applyAsDouble(a.length == 1 ? a[0] : a[i],
+				                                          b.length == 1 ? b[0] : b[i],
+				                                          c.length == 1 ? c[0] : c[i]);
+			return buffer;
+		}
+	}
+
+	/**
+	 * The partial derivative of node with respect to its dependency k, the adjoint rule of all operations but the
+	 * expectation, shared by all reverse sweeps. Reads only the values the rule needs, so that e.g. the leaves of a
+	 * sum may have been disposed of.
+	 * @param node A node, not a leaf and not an expectation.
+	 * @param k The index of the dependency.
+	 * @return The pathwise partial derivative.
+	 */
+	private static Partial getPartial(RandomVariable node, int k) {
 		RandomVariable x, y, z;  int s = node.deps.size();
 		x = s > 0 ? node.deps.get(0) : null;
 		y = s > 1 ? node.deps.get(1) : null;
 		z = s > 2 ? node.deps.get(2) : null;
 
-		Function<Double, Double>                     derivativeX = null;
-		BiFunction<Double, Double, Double>           biDerivativeX = null,  biDerivativeY = null;
-		TriFunction<Double, Double, Double, Double>  triDerivativeX = null, triDerivativeY = null, triDerivativeZ = null;
-
 		switch (node.operation) {
 
 			case ADD:
-				pushDerivative(node, x, 1.);
-				pushDerivative(node, y, 1.);
-				break;
+				return new Partial(ONE);
 			case SUB:
-				pushDerivative(node, x, 1.);
-				pushDerivative(node, y, -1.);
-				break;
+				return new Partial(k == 0 ? ONE : MINUS_ONE);
 			case MUL:
-				pushDerivative(node, x, y);
-				pushDerivative(node, y, x);
-				break;
+				return new Partial(k == 0 ? y.getValues() : x.getValues());
 			case DIV:
-				pushDerivative(node, x, getFactory().one().div(y));
-				pushDerivative(node, y, x.div(y.squared()).mult(-1.));
-				break;
+				return k == 0 ? new Partial(b -> 1. / b, y.getValues())
+				              : new Partial((a, b) -> -(a / (b * b)), x.getValues(), y.getValues());
 			case SQR:
-				pushDerivative(node, x, x.mult(2.));
-				break;
+				return new Partial(a -> a * 2., x.getValues());
 			case SQRT:
-				pushDerivative(node, x, getFactory().fromConstant(.5).div(node));
-				break;
+				return new Partial(a -> .5 / a, node.getValues());
 			case EXP:
-				pushDerivative(node, x, node);
-				break;
+				return new Partial(node.getValues());
 			case LOG:
-				pushDerivative(node, x, getFactory().one().div(x));
-				break;
-			case EXPECT:
-				pushExpectation(node, x);
-				break;
+				return new Partial(a -> 1. / a, x.getValues());
 			case CHO:
 				double h = node.h;
-				triDerivativeX = getIndicatorDerivativeX(h);
-				triDerivativeY = getIndicatorDerivativeY(h);
-				triDerivativeZ = getIndicatorDerivativeZ(h);
-				pushDerivative(node, x, new RandomVariable(applyArithmeticOperationBroadcast(triDerivativeX,
-						                                                            x.values, y.values, z.values))
-						                    .removeDifferentiability());
-				pushDerivative(node, y, new RandomVariable(applyArithmeticOperationBroadcast(triDerivativeY,
-						                                                            x.values, y.values, z.values))
-						                    .removeDifferentiability());
-				pushDerivative(node, z, new RandomVariable(applyArithmeticOperationBroadcast(triDerivativeZ,
-						                                                            x.values, y.values, z.values))
-						                    .removeDifferentiability());
-				break;
+				return new Partial(k == 0 ? getIndicatorDerivativeX(h) : k == 1 ? getIndicatorDerivativeY(h) : getIndicatorDerivativeZ(h),
+						x.getValues(), y.getValues(), z.getValues());
 			case CUSTOMUNI:
-				derivativeX = node.customFunctionDerivative;
-				pushDerivative(node, x, new RandomVariable(applyArithmeticOperationBroadcast(derivativeX,
-						                                                            x.values))
-						                    .removeDifferentiability());
-				break;
+				return new Partial(primitive(node.customFunctionDerivative), x.getValues());
 			case CUSTOMBI:
-				biDerivativeX = node.customBiFunctionDerivativeX;
-				biDerivativeY = node.customBiFunctionDerivativeY;
-				pushDerivative(node, x, new RandomVariable(applyArithmeticOperationBroadcast(biDerivativeX,
-						                                                            x.values, y.values))
-						                    .removeDifferentiability());
-				pushDerivative(node, y, new RandomVariable(applyArithmeticOperationBroadcast(biDerivativeY,
-						                                                            x.values, y.values))
-						                    .removeDifferentiability());
-				break;
+				return new Partial(primitive(k == 0 ? node.customBiFunctionDerivativeX : node.customBiFunctionDerivativeY), x.getValues(), y.getValues());
 			case CUSTOMTRI:
-				triDerivativeX = node.customTriFunctionDerivativeX;
-				triDerivativeY = node.customTriFunctionDerivativeY;
-				triDerivativeZ = node.customTriFunctionDerivativeZ;
-				pushDerivative(node, x, new RandomVariable(applyArithmeticOperationBroadcast(triDerivativeX,
-						                                                            x.values, y.values, z.values))
-						                    .removeDifferentiability());
-				pushDerivative(node, y, new RandomVariable(applyArithmeticOperationBroadcast(triDerivativeY,
-						                                                            x.values, y.values, z.values))
-						                    .removeDifferentiability());
-				pushDerivative(node, z, new RandomVariable(applyArithmeticOperationBroadcast(triDerivativeZ,
-						                                                            x.values, y.values, z.values))
-						                    .removeDifferentiability());
+				return new Partial(primitive(k == 0 ? node.customTriFunctionDerivativeX
+				                           : k == 1 ? node.customTriFunctionDerivativeY : node.customTriFunctionDerivativeZ),
+						x.getValues(), y.getValues(), z.getValues());
+			case POW:
+				return new Partial(getPowerDerivative(node.parameter), x.getValues());
+			case MAX:
+				return new Partial(getFloorDerivative(node.parameter), x.getValues());
+			case MIN:
+				return new Partial(getCapDerivative(node.parameter), x.getValues());
+			case ABS:
+				return new Partial(SIGN, x.getValues());
+			case NCDF:
+				return new Partial(NORMAL_PDF, x.getValues());
+			case NPDF:
+				return new Partial(NORMAL_PDF_DERIVATIVE, x.getValues());
+			case DISCOUNT:
+				double time = node.parameter;
+				return k == 0 ? new Partial(getDiscountFactor(time), y.getValues())
+				              : new Partial(v -> -time * v, node.getValues());
+			case FMA:
+				return new Partial(k == 0 ? y.getValues() : k == 1 ? x.getValues() : ONE);
+			default:
+				throw new UnsupportedOperationException("No adjoint rule for " + node.operation + ".");
+		}
+	}
+
+	/**
+	 * Collects all nodes of the graph recorded below the roots.
+	 * @param roots The roots of the graph.
+	 * @return The nodes, in descending order of their ids, which is the order of the reverse sweep.
+	 */
+	static Collection<RandomVariable> getGraph(RandomVariable... roots) {
+		TreeMap<Long, RandomVariable> nodes = new TreeMap<>(Collections.reverseOrder());
+		ArrayList<RandomVariable> stack = new ArrayList<>(Arrays.asList(roots));
+		while (!stack.isEmpty()) {
+			RandomVariable node = stack.remove(stack.size() - 1);
+			if (nodes.putIfAbsent(node.id, node) == null)
+				stack.addAll(node.deps);
+		}
+		return nodes.values();
+	}
+
+	/**
+	 * Returns the nodes whose sample values are read by the adjoint rule of node in processNode().
+	 * @param node A node of the graph.
+	 * @return The nodes whose values are needed in the reverse sweep.
+	 */
+	static List<RandomVariable> getValuesNeededByAdjoint(RandomVariable node) {
+		if (node.operation == null)
+			return Collections.emptyList();
 
+		switch (node.operation) {
+			case ADD:
+			case SUB:
+			case EXPECT:
+				return Collections.emptyList();
+			case SQRT:
+			case EXP:
+				return List.of(node);
+			case SQR:
+			case LOG:
+			case POW:
+			case MAX:
+			case MIN:
+			case ABS:
+			case NCDF:
+			case NPDF:
+				return List.of(node.deps.get(0));
+			case DISCOUNT:
+				return List.of(node, node.deps.get(1));
+			case FMA:
+				return node.deps.subList(0, 2);
+			default:                         // MUL, DIV, CHO, custom operations
+				return node.deps;
 		}
 	}
 
+	/**
+	 * Performs a liveness analysis of the forward values of the graph recorded below this node, and releases the sample
+	 * values of all nodes that are not read by any adjoint rule of the reverse sweep. Released values are rematerialized
+	 * from the dependencies if they are accessed again, see RandomVariable.getValues().
+	 * Values of this node, of leaves and of expectations are retained.
+	 * @return The number of nodes whose values have been released.
+	 */
+	public int releaseForwardValues() {
+		Collection<RandomVariable> nodes = getGraph(this);
+
+		Set<Long> needed = new HashSet<>();
+		needed.add(id);
+		for (RandomVariable node : nodes)
+			for (RandomVariable operand : getValuesNeededByAdjoint(node))
+				needed.add(operand.id);
+
+		int released = 0;
+		for (RandomVariable node : nodes)
+			if (!needed.contains(node.id) && node.releaseValues())
+				released++;
+		return released;
+	}
+
 	/*
 	 * If both x and this are deterministic, this returns the ordinary derivative,
 	 * otherwise it returns the Frechet derivative.
+	 *
+	 * The derivative is a plain RandomVariable, not a RandomVariableDifferentiable: the reverse sweep accumulates the
+	 * adjoints sample-wise without recording them, such that the derivative acts as a constant in further recorded
+	 * operations, and a derivative of it with respect to x is 0, not a second derivative. Second-order sensitivities
+	 * are given by getHessianVectorProduct() and getHessian().
 	 */
 	@Override
 	public RandomValue getDerivativeWithRespectTo(RandomValueDifferentiable x) {
 		if (!undifferentiable && x instanceof RandomVariable) {
-			if (derivatives == null)
-				computeDerivatives();
+			ensureDerivatives(x);
 			if (((RandomVariable)x).isDeterministic() && this.isDeterministic())
-				return lookupOrInitialize((RandomVariable)x).expectation();
+				return new RandomVariable(new double[] { average(lookupOrInitialize((RandomVariable)x).getValues()) });
 			else
 				return lookupOrInitialize((RandomVariable)x);
 		} else {
@@ -224,4 +729,382 @@ public final class RandomVariableDifferentiable extends RandomVariable implement
 		}
 	}
 
+	/**
+	 * Expectations of the derivatives with respect to all inputs, from a single reverse sweep and without creating a
+	 * random variable per input: for deterministic this and x[i] the ordinary derivative, otherwise the expectation
+	 * of the Frechet derivative.
+	 * @param x The inputs.
+	 * @return The gradient, gradient[i] being the derivative with respect to x[i].
+	 */
+	public double[] getGradient(RandomValueDifferentiable... x) {
+		double[][] adjoints = getPathwiseGradient(x);
+		double[] gradient = new double[x.length];
+		for (int i = 0; i < x.length; i++)
+			gradient[i] = adjoints[i].length == 1 ? adjoints[i][0] : average(adjoints[i]);
+		return gradient;
+	}
+
+	/**
+	 * Pathwise derivatives with respect to all inputs, from a single reverse sweep and without creating a random
+	 * variable per input. Rows of length 1 are deterministic. The rows are the sample values of the derivatives
+	 * retained by this node, and must not be modified.
+	 * @param x The inputs.
+	 * @return The matrix of derivatives, row i being the derivative with respect to x[i].
+	 */
+	public double[][] getPathwiseGradient(RandomValueDifferentiable... x) {
+		if (undifferentiable)
+			throw new UnsupportedOperationException("Derivatives of indicator function are not differentiable.");
+		ensureDerivatives(x);
+
+		double[][] adjoints = new double[x.length][];
+		for (int i = 0; i < x.length; i++) {
+			RandomVariable derivative = x[i] instanceof RandomVariable ? derivatives.get(((RandomVariable)x[i]).id) : null;
+			adjoints[i] = derivative != null ? derivative.getValues() : new double[] { 0. };
+		}
+		return adjoints;
+	}
+
+	/**
+	 * Vector reverse mode: the gradients of many roots sharing a graph, e.g. the caplets of a strip sharing their
+	 * Brownian increments, from a single reverse sweep over the union of their graphs. Every node carries a block of
+	 * adjoints, one per root; its partial derivatives are computed once and applied to the whole block, such that
+	 * traversal and partial derivatives are shared by all roots. Adjoints are released as soon as their node has been
+	 * processed, as in computeDerivatives(), and are accumulated as scalars if all roots are deterministic.
+	 * @param roots The roots, e.g. the values of the products of a portfolio.
+	 * @param x The inputs.
+	 * @return The gradients, gradients[k][i] being the derivative of roots[k] with respect to x[i], as in getGradient().
+	 */
+	public static double[][] getGradients(RandomVariableDifferentiable[] roots, RandomValueDifferentiable... x) {
+		boolean deterministicRoots = true;
+		for (RandomVariableDifferentiable root : roots) {
+			if (root.undifferentiable)
+				throw new UnsupportedOperationException("Derivatives of indicator function are not differentiable.");
+			deterministicRoots &= root.isDeterministic();
+		}
+
+		Collection<RandomVariable> nodes = getGraph(roots);
+		Set<Long> scalar = deterministicRoots ? getDeterministicSubgraphs(nodes) : Collections.emptySet();
+		Set<Long> requested = new HashSet<>();
+		for (RandomValueDifferentiable input : x)
+			if (input instanceof RandomVariable)
+				requested.add(((RandomVariable)input).id);
+
+		int numberOfRoots = roots.length;
+		Map<Long, double[][]> adjoints = new HashMap<>();
+		for (int k = 0; k < numberOfRoots; k++)
+			adjoints.computeIfAbsent(roots[k].id, key -> new double[numberOfRoots][])[k] = new double[] { 1. };
+
+		for (RandomVariable node : nodes) {
+			double[][] block = adjoints.get(node.id);
+			if (node.operation == null || block == null)
+				continue;
+
+			if (node.operation == Operation.EXPECT) {
+				for (int k = 0; k < numberOfRoots; k++)
+					if (block[k] != null)
+						accumulate(adjoints, numberOfRoots, scalar, node.deps.get(0), k, ONE, new double[] { average(block[k]) });
+			} else {
+				for (int d = 0; d < node.deps.size(); d++) {
+					Partial partial = getPartial(node, d);
+					double[] values = partial.evaluate();
+					for (int k = 0; k < numberOfRoots; k++)
+						if (block[k] != null)
+							accumulate(adjoints, numberOfRoots, scalar, node.deps.get(d), k, values, block[k]);
+					if (partial.isTemporary())
+						SampleBufferPool.release(values);
+				}
+			}
+			if (!requested.contains(node.id))
+				for (double[] adjoint : adjoints.remove(node.id))
+					SampleBufferPool.release(adjoint);
+		}
+
+		double[][] gradients = new double[numberOfRoots][x.length];
+		for (int i = 0; i < x.length; i++) {
+			double[][] block = x[i] instanceof RandomVariable ? adjoints.get(((RandomVariable)x[i]).id) : null;
+			if (block != null)
+				for (int k = 0; k < numberOfRoots; k++)
+					if (block[k] != null)
+						gradients[k][i] = block[k].length == 1 ? block[k][0] : average(block[k]);
+		}
+		for (double[][] block : adjoints.values())
+			for (double[] adjoint : block)
+				SampleBufferPool.release(adjoint);
+		return gradients;
+	}
+
+	/*
+	 * Adds partial * adjoint to the adjoint of key with respect to root k, as accumulateUnsynchronized() does.
+	 */
+	private static void accumulate(Map<Long, double[][]> adjoints, int numberOfRoots, Set<Long> scalar, RandomVariable key, int k,
+			double[] partial, double[] adjoint) {
+		double[][] block = adjoints.computeIfAbsent(key.id, id -> new double[numberOfRoots][]);
+		if (block[k] == null)
+			block[k] = new double[] { 0. };
+		double[] sum = block[k];
+		int s = sum.length;
+		if (s == 1 && scalar.contains(key.id)) {
+			sum[0] += dot(partial, adjoint);
+		} else if (s > 1 && (partial.length == 1 || partial.length == s) && (adjoint.length == 1 || adjoint.length == s)) {
+			IntStream.range(0, s).parallel().forEach(i -> sum[i] += (partial.length == 1 ? partial[0] : partial[i])
+			                                                      * (adjoint.length == 1 ? adjoint[0] : adjoint[i]));
+		} else
+			block[k] = applyArithmeticOperationBroadcast((a, b, c) -> a + b * c, sum, partial, adjoint);
+	}
+
+	/**
+	 * Hessian-vector product by forward-over-reverse: a forward sweep propagates the tangents of all nodes in the
+	 * direction, then a reverse sweep propagates the adjoints together with their tangents, using the second partial
+	 * derivatives of the operations. Costs about two gradients, independently of the number of inputs.
+	 *
+	 * Kinks of floor(), cap() and abs() have second derivative zero, as they have a first derivative without the
+	 * point mass. For choose(), the call spread of width 2h has the density w'(x) = 1/(2h) on [-h, h]; its
+	 * derivative, a pair of point masses at -h and h, is smoothed by the same call spread, which gives
+	 * w''(x) = 1/(4h^2) on [-2h, 0] and -1/(4h^2) on (0, 2h]. Custom operations do not provide second derivatives.
+	 * @param x The inputs, leaves of the graph of this node.
+	 * @param direction The direction, direction[i] being the component of x[i].
+	 * @return The product, element i being the directional derivative of the derivative with respect to x[i], as in
+	 * getGradient().
+	 */
+	public double[] getHessianVectorProduct(RandomValueDifferentiable[] x, double[] direction) {
+		if (undifferentiable)
+			throw new UnsupportedOperationException("Derivatives of indicator function are not differentiable.");
+		if (direction.length != x.length)
+			throw new IllegalArgumentException("Expected " + x.length + " components of the direction, got " + direction.length + ".");
+
+		List<RandomVariable> nodes = new ArrayList<>(getGraph(this));
+		Map<Long, double[]> tangents = new HashMap<>();
+		for (int i = 0; i < x.length; i++)
+			if (x[i] instanceof RandomVariable && direction[i] != 0)
+				addProduct(tangents, ((RandomVariable)x[i]).id, ONE, new double[] { direction[i] });
+
+		for (int n = nodes.size() - 1; n >= 0; n--) {           // ascending ids, dependencies before their consumers
+			RandomVariable node = nodes.get(n);
+			if (node.operation == null)
+				continue;
+			for (int d = 0; d < node.deps.size(); d++) {
+				double[] tangent = tangents.get(node.deps.get(d).id);
+				if (tangent == null)
+					continue;
+				if (node.operation == Operation.EXPECT)
+					addProduct(tangents, node.id, ONE, new double[] { average(tangent) });
+				else
+					addPartialProduct(tangents, node, d, tangent);
+			}
+		}
+
+		Map<Long, double[]> adjoints = new HashMap<>(), adjointTangents = new HashMap<>();
+		adjoints.put(id, new double[] { 1. });
+		for (RandomVariable node : nodes) {
+			double[] adjoint = adjoints.get(node.id), adjointTangent = adjointTangents.get(node.id);
+			if (node.operation == null || adjoint == null)
+				continue;
+
+			for (int d = 0; d < node.deps.size(); d++) {
+				long key = node.deps.get(d).id;
+				if (node.operation == Operation.EXPECT) {
+					addProduct(adjoints, key, ONE, new double[] { average(adjoint) });
+					if (adjointTangent != null)
+						addProduct(adjointTangents, key, ONE, new double[] { average(adjointTangent) });
+					continue;
+				}
+				Partial partial = getPartial(node, d);
+				double[] values = partial.evaluate();
+				addProduct(adjoints, key, values, adjoint);
+				if (adjointTangent != null)
+					addProduct(adjointTangents, key, values, adjointTangent);
+				if (partial.isTemporary())
+					SampleBufferPool.release(values);
+
+				double[] partialTangent = getPartialTangent(node, d, tangents);
+				if (partialTangent != null) {
+					addProduct(adjointTangents, key, partialTangent, adjoint);
+					SampleBufferPool.release(partialTangent);
+				}
+			}
+			SampleBufferPool.release(adjoints.remove(node.id));
+			SampleBufferPool.release(adjointTangents.remove(node.id));
+		}
+
+		double[] product = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			double[] adjointTangent = x[i] instanceof RandomVariable ? adjointTangents.get(((RandomVariable)x[i]).id) : null;
+			if (adjointTangent != null)
+				product[i] = adjointTangent.length == 1 ? adjointTangent[0] : average(adjointTangent);
+		}
+		for (Map<Long, double[]> buffers : List.of(tangents, adjoints, adjointTangents))
+			for (double[] buffer : buffers.values())
+				SampleBufferPool.release(buffer);
+		return product;
+	}
+
+	/**
+	 * The Hessian with respect to a few inputs, one Hessian-vector product per input, see getHessianVectorProduct().
+	 * @param x The inputs, leaves of the graph of this node.
+	 * @return The Hessian, hessian[i][j] being the derivative with respect to x[i] and x[j].
+	 */
+	public double[][] getHessian(RandomValueDifferentiable... x) {
+		double[][] hessian = new double[x.length][x.length];
+		for (int j = 0; j < x.length; j++) {
+			double[] direction = new double[x.length];
+			direction[j] = 1.;
+			double[] column = getHessianVectorProduct(x, direction);
+			for (int i = 0; i < x.length; i++)
+				hessian[i][j] = column[i];
+		}
+		return hessian;
+	}
+
+	/*
+	 * Adds the product of the partial derivative of node with respect to its dependency d and tangent to the tangent
+	 * of node.
+	 */
+	private static void addPartialProduct(Map<Long, double[]> tangents, RandomVariable node, int d, double[] tangent) {
+		Partial partial = getPartial(node, d);
+		double[] values = partial.evaluate();
+		addProduct(tangents, node.id, values, tangent);
+		if (partial.isTemporary())
+			SampleBufferPool.release(values);
+	}
+
+	/*
+	 * Adds a * b to the buffer of key, which is owned by the map: a and b are never stored.
+	 */
+	private static void addProduct(Map<Long, double[]> buffers, long key, double[] a, double[] b) {
+		double[] sum = buffers.get(key);
+		if (sum == null)
+			buffers.put(key, applyArithmeticOperationBroadcast((u, v) -> u * v, a, b));
+		else if (sum.length > 1 && (a.length == 1 || a.length == sum.length) && (b.length == 1 || b.length == sum.length))
+			IntStream.range(0, sum.length).parallel().forEach(i -> sum[i] += (a.length == 1 ? a[0] : a[i]) * (b.length == 1 ? b[0] : b[i]));
+		else {
+			buffers.put(key, applyArithmeticOperationBroadcast((s, u, v) -> s + u * v, sum, a, b));
+			SampleBufferPool.release(sum);
+		}
+	}
+
+	private static final double[] ZERO = { 0. };
+
+	/**
+	 * The tangent of the partial derivative of node with respect to its dependency k, i.e., the sum of the second
+	 * partial derivatives with respect to k and j times the tangents of the dependencies j.
+	 * @param node A node, not a leaf and not an expectation.
+	 * @param k The index of the dependency.
+	 * @param tangents The tangents of the nodes, absent if zero.
+	 * @return The tangent, a temporary buffer, or null if it is zero.
+	 */
+	private static double[] getPartialTangent(RandomVariable node, int k, Map<Long, double[]> tangents) {
+		int s = node.deps.size();
+		double[][] values = new double[3][], dot = new double[3][];
+		boolean zero = true;
+		for (int j = 0; j < 3; j++) {
+			values[j] = j < s ? node.deps.get(j).getValues() : ZERO;
+			dot[j] = j < s ? tangents.get(node.deps.get(j).id) : null;
+			zero &= dot[j] == null;
+			if (dot[j] == null)
+				dot[j] = ZERO;
+		}
+		if (zero)
+			return null;
+
+		double[] x = values[0], y = values[1], z = values[2], dx = dot[0], dy = dot[1], dz = dot[2];
+		switch (node.operation) {
+			case ADD:
+			case SUB:
+			case MAX:
+			case MIN:
+			case ABS:
+				return null;
+			case MUL:
+				return sampleWise(i -> at(k == 0 ? dy : dx, i), k == 0 ? dy : dx);
+			case DIV:
+				if (k == 0)
+					return sampleWise(i -> -at(dy, i) / (at(y, i) * at(y, i)), y, dy);
+				return sampleWise(i -> (2. * at(x, i) * at(dy, i) - at(dx, i) * at(y, i)) / (at(y, i) * at(y, i) * at(y, i)), x, y, dx, dy);
+			case SQR:
+				return sampleWise(i -> 2. * at(dx, i), dx);
+			case SQRT:
+				double[] root = node.getValues();
+				return sampleWise(i -> -.25 * at(dx, i) / (at(root, i) * at(root, i) * at(root, i)), root, dx);
+			case EXP:
+				double[] exp = node.getValues();
+				return sampleWise(i -> at(exp, i) * at(dx, i), exp, dx);
+			case LOG:
+				return sampleWise(i -> -at(dx, i) / (at(x, i) * at(x, i)), x, dx);
+			case CHO:
+				double h = node.h;
+				if (k == 0)
+					return sampleWise(i -> (at(y, i) - at(z, i)) * getIndicatorSecondDerivative(h, at(x, i)) * at(dx, i)
+							+ getIndicatorDensity(h, at(x, i)) * (at(dy, i) - at(dz, i)), x, y, z, dx, dy, dz);
+				double sign = k == 1 ? 1. : -1.;
+				return sampleWise(i -> sign * getIndicatorDensity(h, at(x, i)) * at(dx, i), x, dx);
+			case POW:
+				double exponent = node.parameter;
+				if (exponent == 0 || exponent == 1)
+					return null;
+				return sampleWise(i -> exponent * (exponent - 1.) * Math.pow(at(x, i), exponent - 2.) * at(dx, i), x, dx);
+			case NCDF:
+				return sampleWise(i -> -at(x, i) * NormalDistribution.density(at(x, i)) * at(dx, i), x, dx);
+			case NPDF:
+				return sampleWise(i -> (at(x, i) * at(x, i) - 1.) * NormalDistribution.density(at(x, i)) * at(dx, i), x, dx);
+			case DISCOUNT:
+				double time = node.parameter;
+				if (k == 0)
+					return sampleWise(i -> -time * Math.exp(-at(y, i) * time) * at(dy, i), y, dy);
+				double[] discounted = node.getValues();
+				return sampleWise(i -> -time * Math.exp(-at(y, i) * time) * at(dx, i) + time * time * at(discounted, i) * at(dy, i),
+						discounted, y, dx, dy);
+			case FMA:
+				if (k == 2)
+					return null;
+				return sampleWise(i -> at(k == 0 ? dy : dx, i), k == 0 ? dy : dx);
+			default:
+				throw new UnsupportedOperationException("No second order adjoint rule for " + node.operation + ".");
+		}
+	}
+
+	/*
+	 * Density and smoothed derivative of the density of the call spread of choose(), see getHessianVectorProduct().
+	 */
+	private static double getIndicatorDensity(double h, double x) {
+		return x > -h && x <= h ? 1. / (2. * h) : 0.;
+	}
+
+	private static double getIndicatorSecondDerivative(double h, double x) {
+		if      (x <= -2. * h)  return 0.;
+		else if (x <= 0.)       return 1. / (4. * h * h);
+		else if (x <= 2. * h)   return -1. / (4. * h * h);
+		else                    return 0.;
+	}
+
+	private static double at(double[] values, int i) {
+		return values.length == 1 ? values[0] : values[i];
+	}
+
+	/**
+	 * Evaluates sample for every index i, in parallel. The number of samples is the largest length of the operands.
+	 * @param sample The function of i computing sample i from the operands.
+	 * @param operands The arrays read by sample, of length 1 or of the number of samples.
+	 * @return The samples, in a buffer acquired from the SampleBufferPool, which is a new array if all operands are
+	 * deterministic.
+	 */
+	private static double[] sampleWise(IntToDoubleFunction sample, double[]... operands) {
+		int numberOfSamples = 1;
+		for (double[] operand : operands)
+			numberOfSamples = Math.max(numberOfSamples, operand.length);
+		double[] result = SampleBufferPool.acquire(numberOfSamples);
+		IntStream.range(0, numberOfSamples).parallel().forEach(i -> result[i] = sample.applyAsDouble(i));
+		return result;
+	}
+
+	/**
+	 * Performs the reverse sweep, unless its derivatives are available already for all of x. Derivatives of
+	 * intermediate nodes are only retained on request, such that requesting a new one requires a new sweep.
+	 */
+	private void ensureDerivatives(RandomValueDifferentiable... x) {
+		for (RandomValueDifferentiable input : x)
+			if (input instanceof RandomVariable && ((RandomVariable)input).operation != null && retained.add(((RandomVariable)input).id))
+				derivatives = null;
+		if (derivatives == null)
+			computeDerivatives();
+	}
 }
@@ -1,37 +1,144 @@
 package info.quantlab.computationfinance.lecture.assignment2;
 
-import java.util.ArrayList;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 import net.finmath.aadexperiments.randomvalue.RandomValueFactory;
 
+/**
+ * Creates random variables. A recording factory creates instances of RandomVariableDifferentiable, a non-recording
+ * factory creates plain RandomVariable objects, on which operations are not recorded, for pure valuation runs.
+ * @author Jakob Ullmann
+ *
+ */
 public class RandomVariableFactory implements RandomValueFactory {
 
+	private final boolean recording;
+
 	public RandomVariableFactory() {
+		this(true);
+	}
+
+	public RandomVariableFactory(boolean recording) {
+		this.recording = recording;
+	}
+
+	public boolean isRecording() {
+		return recording;
 	}
 
 	@Override
-	public RandomVariableDifferentiable zero() {
+	public RandomVariable zero() {
 		return fromConstant(0.);
 	}
 
 	@Override
-	public RandomVariableDifferentiable one() {
+	public RandomVariable one() {
 		return fromConstant(1.);
 	}
 
 	@Override
-	public RandomVariableDifferentiable fromConstant(double constant) {
+	public RandomVariable fromConstant(double constant) {
 		return fromArray(new double[] { constant });
 	}
 
 	@Override
-	public RandomVariableDifferentiable fromArray(double[] values) {
-		ArrayList<Double> tmp = new ArrayList<>(values.length); // allocate enough memory
+	public RandomVariable fromArray(double[] values) {
+		double[] tmp = SampleBufferPool.acquire(values.length);
+		System.arraycopy(values, 0, tmp, 0, values.length);
+
+		if (recording)
+			return new RandomVariableDifferentiable(tmp);
+		else
+			return new RandomVariable(tmp).setRecording(false);
+	}
 
-		for (double val : values)
-			tmp.add(val);
+	/**
+	 * Adapts a random variable of finmath-lib, e.g. the paths of one of its Monte Carlo models, sharing its sample
+	 * values instead of copying them, as RandomVariableTape.input() does: for RandomVariableFromDoubleArray, the
+	 * returned random variable holds the very array of realizations. In-place operations on it therefore throw, and
+	 * dispose() does not return the array to the SampleBufferPool.
+	 * @param x A random variable of finmath-lib.
+	 * @return A random variable of this factory with the same values.
+	 */
+	public RandomVariable fromFinmath(net.finmath.stochastic.RandomVariable x) {
+		double[] values = x.getRealizations();
 
-		return new RandomVariableDifferentiable(tmp);
+		RandomVariable randomVariable = recording ? new RandomVariableDifferentiable(values) : new RandomVariable(values).setRecording(false);
+		randomVariable.sharedValues = true;
+		return randomVariable;
 	}
 
+	/**
+	 * Number of paths drawn from one random number substream by fromCorrelatedNormals().
+	 */
+	private static final int pathsPerSubstream = 4096;
+
+	/**
+	 * Creates correlated standard normal random variables, e.g. the Brownian increments of the factors of a
+	 * multi-asset model, in a single pass: the correlation matrix is factorized as L L^T by a Cholesky decomposition,
+	 * and for every path, independent normals are drawn and multiplied by L, writing directly into the sample buffers.
+	 * Blocks of paths are drawn in parallel, each from its own random number substream derived from the seed, as in
+	 * ShardedMonteCarlo, such that the samples do not depend on the number of threads.
+	 * The results are leaves: derivatives with respect to the correlations are not available.
+	 * @param correlation A symmetric, positive definite correlation matrix.
+	 * @param numberOfSamples The number of paths.
+	 * @param seed The seed of the random number substreams.
+	 * @return One random variable per factor.
+	 */
+	public RandomVariable[] fromCorrelatedNormals(double[][] correlation, int numberOfSamples, long seed) {
+		double[][] factor = getCholeskyFactor(correlation);
+		int numberOfFactors = factor.length;
+
+		double[][] samples = new double[numberOfFactors][];
+		for (int i = 0; i < numberOfFactors; i++)
+			samples[i] = SampleBufferPool.acquire(numberOfSamples);
+
+		IntStream.range(0, (numberOfSamples + pathsPerSubstream - 1) / pathsPerSubstream).parallel().forEach(block -> {
+			Random random = new Random(ShardedMonteCarlo.getSubstreamSeed(seed, block));
+			double[] independent = new double[numberOfFactors];
+			for (int path = block * pathsPerSubstream; path < Math.min(numberOfSamples, (block + 1) * pathsPerSubstream); path++) {
+				for (int j = 0; j < numberOfFactors; j++)
+					independent[j] = random.nextGaussian();
+				for (int i = 0; i < numberOfFactors; i++) {
+					double sum = 0;
+					for (int j = 0; j <= i; j++)
+						sum += factor[i][j] * independent[j];
+					samples[i][path] = sum;
+				}
+			}
+		});
+
+		RandomVariable[] normals = new RandomVariable[numberOfFactors];
+		for (int i = 0; i < numberOfFactors; i++)
+			normals[i] = recording ? new RandomVariableDifferentiable(samples[i]) : new RandomVariable(samples[i]).setRecording(false);
+		return normals;
+	}
+
+	/**
+	 * @param matrix A symmetric, positive definite matrix.
+	 * @return The lower triangular matrix L with L L^T = matrix.
+	 */
+	static double[][] getCholeskyFactor(double[][] matrix) {
+		int n = matrix.length;
+		double[][] factor = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			if (matrix[i].length != n)
+				throw new IllegalArgumentException("Matrix is not square.");
+			for (int j = 0; j <= i; j++) {
+				if (Math.abs(matrix[i][j] - matrix[j][i]) > 1E-12)
+					throw new IllegalArgumentException("Matrix is not symmetric.");
+				double sum = matrix[i][j];
+				for (int k = 0; k < j; k++)
+					sum -= factor[i][k] * factor[j][k];
+				if (i == j) {
+					if (!(sum > 0))
+						throw new IllegalArgumentException("Matrix is not positive definite.");
+					factor[i][i] = Math.sqrt(sum);
+				} else
+					factor[i][j] = sum / factor[j][j];
+			}
+		}
+		return factor;
+	}
 }
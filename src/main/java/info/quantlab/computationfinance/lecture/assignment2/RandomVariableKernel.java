@@ -0,0 +1,614 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import info.quantlab.computationfinance.lecture.assignment2.RandomVariable.Operation;
+import info.quantlab.computationfinance.lecture.assignment2.RandomVariable.Precision;
+import info.quantlab.computationfinance.lecture.assignment2.RandomVariable.TriFunction;
+import net.finmath.functions.NormalDistribution;
+
+/**
+ * A pathwise kernel compiled from a recorded RandomVariable graph. Instead of interpreting the graph node by node,
+ * the graph is translated into a linear program over a register file holding one slot per node: every node becomes
+ * a MethodHandle instruction which reads the registers of its dependencies and writes its own, in ascending order of
+ * the ids, i.e. dependencies before their consumers. The instructions are composed into a single straight-line
+ * MethodHandle, which runs them in order and is invoked once per path, such that every node, however often it is
+ * shared, is evaluated once per path.
+ *
+ * The derivatives with respect to all inputs are computed by the adjoint program, a reverse pass over the same
+ * registers, composed in the same way: for every node depending on an input, in descending order, its adjoint
+ * register times its partial derivatives is added to the adjoint registers of its dependencies. Both passes cost a
+ * small multiple of the number of nodes per path, independently of the number of inputs.
+ *
+ * The instructions are composed as a balanced tree of MethodHandles.foldArguments(), such that the nesting depth only
+ * grows with the logarithm of the number of nodes. HotSpot customizes a handle which is invoked repeatedly, binding
+ * its registers and operations as constants, such that the program is compiled as one unit with the operations
+ * inlined, up to the inlining limits of the JIT; larger programs are compiled in several parts. The paths are
+ * iterated in Java around the program, so the kernel is not vectorized across paths.
+ *
+ * Nodes which are not pathwise (EXPECT) or carry no recorded operation are captured as constants at compile time,
+ * i.e. the kernel does not differentiate through inner expectations. If the root itself is an expectation, its
+ * argument is compiled and the expectation is applied to the results of the kernel.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class RandomVariableKernel {
+
+	private static final MethodType STEP_TYPE         = MethodType.methodType(void.class, double[].class, double[][].class, int.class);
+	private static final MethodType ADJOINT_STEP_TYPE = MethodType.methodType(void.class, double[].class, double[].class);
+	private static final MethodType READ_TYPE         = MethodType.methodType(double.class, double[].class);
+
+	/**
+	 * The number of paths evaluated with the same register file.
+	 */
+	private static final int pathsPerBlock = 1024;
+
+	private static final MethodHandle SAMPLE, GET, SET, ACCUMULATE, IDENTITY;
+	private static final MethodHandle ADD, SUB, MUL, DIV, SQR, SQRT, EXP, LOG, FAST_EXP, FAST_LOG;
+	private static final MethodHandle RECIPROCAL, DIV_DY, TWICE, SQRT_DERIVATIVE;
+	private static final MethodHandle CHOOSE, CHOOSE_DX, CHOOSE_DY, CHOOSE_DZ;
+	private static final MethodHandle FUNCTION, BIFUNCTION, TRIFUNCTION;
+	private static final MethodHandle POW, POW_DERIVATIVE, MAX, MAX_DERIVATIVE, MIN, MIN_DERIVATIVE, ABS, SIGNUM;
+	private static final MethodHandle NCDF, NPDF, NPDF_DERIVATIVE, DISCOUNT, DISCOUNT_DX, DISCOUNT_DR, FMA;
+
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodType unary   = MethodType.methodType(double.class, double.class);
+		MethodType binary  = MethodType.methodType(double.class, double.class, double.class);
+		MethodType ternary = MethodType.methodType(double.class, double.class, double.class, double.class);
+		MethodType choose  = MethodType.methodType(double.class, double.class, double.class, double.class, double.class);
+		try {
+			SAMPLE      = lookup.findStatic(RandomVariableKernel.class, "sample",
+					MethodType.methodType(double.class, double[][].class, int.class, int.class));
+			GET         = MethodHandles.arrayElementGetter(double[].class);
+			SET         = MethodHandles.arrayElementSetter(double[].class);
+			ACCUMULATE  = lookup.findStatic(RandomVariableKernel.class, "accumulate",
+					MethodType.methodType(void.class, double[].class, int.class, int.class, double.class));
+			IDENTITY    = MethodHandles.identity(double.class);
+			ADD         = lookup.findStatic(RandomVariableKernel.class, "add",  binary);
+			SUB         = lookup.findStatic(RandomVariableKernel.class, "sub",  binary);
+			MUL         = lookup.findStatic(RandomVariableKernel.class, "mult", binary);
+			DIV         = lookup.findStatic(RandomVariableKernel.class, "div",  binary);
+			SQR         = lookup.findStatic(RandomVariableKernel.class, "squared", unary);
+			SQRT        = lookup.findStatic(Math.class, "sqrt", unary);
+			EXP         = lookup.findStatic(Math.class, "exp",  unary);
+			LOG         = lookup.findStatic(RandomVariableKernel.class, "log", unary);
+			FAST_EXP    = lookup.findStatic(FastMath.class, "exp", unary);
+			FAST_LOG    = lookup.findStatic(FastMath.class, "log", unary);
+			RECIPROCAL  = lookup.findStatic(RandomVariableKernel.class, "reciprocal", unary);
+			DIV_DY      = lookup.findStatic(RandomVariableKernel.class, "divDerivativeY", binary);
+			TWICE       = lookup.findStatic(RandomVariableKernel.class, "twice", unary);
+			SQRT_DERIVATIVE = lookup.findStatic(RandomVariableKernel.class, "sqrtDerivative", unary);
+			CHOOSE      = lookup.findStatic(RandomVariableKernel.class, "choose",  choose);
+			CHOOSE_DX   = lookup.findStatic(RandomVariableKernel.class, "chooseDerivativeX", choose);
+			CHOOSE_DY   = lookup.findStatic(RandomVariableKernel.class, "chooseDerivativeY", choose);
+			CHOOSE_DZ   = lookup.findStatic(RandomVariableKernel.class, "chooseDerivativeZ", choose);
+			POW         = lookup.findStatic(Math.class, "pow", binary);
+			POW_DERIVATIVE = lookup.findStatic(RandomVariableKernel.class, "powDerivative", binary);
+			MAX         = lookup.findStatic(Math.class, "max", binary);
+			MAX_DERIVATIVE = lookup.findStatic(RandomVariableKernel.class, "floorDerivative", binary);
+			MIN         = lookup.findStatic(Math.class, "min", binary);
+			MIN_DERIVATIVE = lookup.findStatic(RandomVariableKernel.class, "capDerivative", binary);
+			ABS         = lookup.findStatic(Math.class, "abs", unary);
+			SIGNUM      = lookup.findStatic(Math.class, "signum", unary);
+			NCDF        = lookup.findStatic(NormalDistribution.class, "cumulativeDistribution", unary);
+			NPDF        = lookup.findStatic(NormalDistribution.class, "density", unary);
+			NPDF_DERIVATIVE = lookup.findStatic(RandomVariableKernel.class, "densityDerivative", unary);
+			DISCOUNT    = lookup.findStatic(RandomVariableKernel.class, "discount", ternary);
+			DISCOUNT_DX = lookup.findStatic(RandomVariableKernel.class, "discountDerivativeX", ternary);
+			DISCOUNT_DR = lookup.findStatic(RandomVariableKernel.class, "discountDerivativeR", ternary);
+			FMA         = lookup.findStatic(RandomVariableKernel.class, "multAdd", ternary);
+			FUNCTION    = lookup.findVirtual(Function.class, "apply",
+					MethodType.methodType(Object.class, Object.class));
+			BIFUNCTION  = lookup.findVirtual(BiFunction.class, "apply",
+					MethodType.methodType(Object.class, Object.class, Object.class));
+			TRIFUNCTION = lookup.findVirtual(TriFunction.class, "apply",
+					MethodType.methodType(Object.class, Object.class, Object.class, Object.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/*
+	 * Primitive kernels of the built-in operations. The indicator function and its derivatives mirror
+	 * RandomVariable.getIndicatorFunction() and RandomVariableDifferentiable.getIndicatorDerivative*().
+	 */
+	private static double sample(double[][] leaves, int path, int slot) {
+		double[] values = leaves[slot];
+		return values.length == 1 ? values[0] : values[path];
+	}
+
+	private static void accumulate(double[] adjoints, int node, int dependency, double partial) {
+		adjoints[dependency] += partial * adjoints[node];
+	}
+
+	private static double add(double a, double b)  { return a + b; }
+	private static double sub(double a, double b)  { return a - b; }
+	private static double mult(double a, double b) { return a * b; }
+	private static double div(double a, double b)  { return a / b; }
+	private static double squared(double a)        { return a * a; }
+
+	private static double reciprocal(double a)             { return 1. / a; }
+	private static double divDerivativeY(double a, double b) { return -a / (b * b); }
+	private static double twice(double a)                  { return 2. * a; }
+	private static double sqrtDerivative(double value)     { return .5 / value; }
+
+	private static double log(double a) {
+		return a >  0 ? Math.log(a) :
+		       a == 0 ? Double.NEGATIVE_INFINITY
+		              : Double.NaN;
+	}
+
+	private static double choose(double x, double y, double z, double h) {
+		double ratio = x/h;
+		return (ratio <= -1) ? z :
+		       (ratio >  1)  ? y
+		                     : ratio * (y - z) + .5 * (z + y);
+	}
+
+	private static double chooseDerivativeX(double x, double y, double z, double h) {
+		return (x <= -h || x > h) ? 0. : (y - z)/(2.*h);
+	}
+
+	private static double chooseDerivativeY(double x, double y, double z, double h) {
+		return (x <= -h) ? 0. : (x <= h) ? (h + x)/(2.*h) : 1.;
+	}
+
+	private static double chooseDerivativeZ(double x, double y, double z, double h) {
+		return (x <= -h) ? 1. : (x <= h) ? (h - x)/(2.*h) : 0.;
+	}
+
+	private static double powDerivative(double a, double exponent) {
+		return exponent == 0 ? 0. : exponent * Math.pow(a, exponent - 1.);
+	}
+
+	private static double floorDerivative(double a, double floor) { return a > floor ? 1. : 0.; }
+	private static double capDerivative(double a, double cap)     { return a < cap ? 1. : 0.; }
+	private static double densityDerivative(double a)             { return -a * NormalDistribution.density(a); }
+	private static double multAdd(double a, double b, double c)   { return a * b + c; }
+
+	private static double discount(double a, double r, double time)            { return a * Math.exp(-r * time); }
+	private static double discountDerivativeX(double a, double r, double time) { return Math.exp(-r * time); }
+	private static double discountDerivativeR(double a, double r, double time) { return -time * a * Math.exp(-r * time); }
+
+	private final MethodHandle program;
+	private final MethodHandle adjointProgram;
+	private final double[] initialRegisters;
+	private final int rootRegister;
+	private final List<double[]> captured;
+	private final int numberOfInputs;
+	private final boolean expectation;
+
+	private RandomVariableKernel(MethodHandle program, MethodHandle adjointProgram, double[] initialRegisters, int rootRegister,
+			List<double[]> captured, int numberOfInputs, boolean expectation) {
+		this.program = program;
+		this.adjointProgram = adjointProgram;
+		this.initialRegisters = initialRegisters;
+		this.rootRegister = rootRegister;
+		this.captured = captured;
+		this.numberOfInputs = numberOfInputs;
+		this.expectation = expectation;
+	}
+
+	/**
+	 * Compiles the graph recorded below root into a pathwise kernel.
+	 * @param root The output of the kernel.
+	 * @param inputs The random variables which can be replaced when evaluating the kernel, and with respect to which
+	 * the kernel can be differentiated. All other leaves of the graph are captured as constants.
+	 * @return The compiled kernel.
+	 */
+	public static RandomVariableKernel compile(RandomVariable root, RandomVariable... inputs) {
+		boolean expectation = root.operation == Operation.EXPECT;
+		return new Compiler(inputs).compile(expectation ? root.deps.get(0) : root, expectation);
+	}
+
+	/**
+	 * Evaluates the kernel on the inputs passed to compile().
+	 * @return A RandomVariable holding the result; it is not recorded for AAD.
+	 */
+	public RandomVariable evaluate() {
+		return evaluateValues(leaves(null));
+	}
+
+	/**
+	 * Evaluates the kernel on new sample values of the inputs.
+	 * @param inputs Values of the inputs, in the order passed to compile().
+	 * @return A RandomVariable holding the result; it is not recorded for AAD.
+	 */
+	public RandomVariable evaluate(RandomVariable... inputs) {
+		return evaluateValues(leaves(inputs));
+	}
+
+	/**
+	 * Evaluates the derivatives of the kernel with respect to all of its inputs on new sample values of the inputs,
+	 * from one forward and one adjoint pass per path.
+	 * As for RandomVariableDifferentiable.getDerivativeWithRespectTo(), the expectation of the pathwise derivative is
+	 * returned if both the root of the compiled graph and the input are deterministic.
+	 * @param inputs Values of the inputs, in the order passed to compile().
+	 * @return The derivatives, in the order of the inputs.
+	 */
+	public RandomVariable[] evaluateDerivatives(RandomVariable... inputs) {
+		double[][] leaves = leaves(inputs);
+		int numberOfPaths = getNumberOfPaths(leaves);
+
+		double[][] derivatives = new double[numberOfInputs][];
+		for (int k = 0; k < numberOfInputs; k++)
+			derivatives[k] = SampleBufferPool.acquire(numberOfPaths);
+
+		forEachBlock(numberOfPaths, (registers, from, to) -> {
+			double[] adjoints = new double[registers.length];
+			for (int path = from; path < to; path++) {
+				run(registers, leaves, path);
+				Arrays.fill(adjoints, 0.);
+				adjoints[rootRegister] = 1.;
+				invoke(adjointProgram, registers, adjoints);
+				for (int k = 0; k < numberOfInputs; k++)
+					derivatives[k][path] = adjoints[k];               // the inputs occupy the first registers
+			}
+		});
+
+		RandomVariable[] result = new RandomVariable[numberOfInputs];
+		for (int k = 0; k < numberOfInputs; k++)
+			result[k] = toRandomVariable(derivatives[k], expectation && leaves[k].length == 1);
+		return result;
+	}
+
+	private double[][] leaves(RandomVariable[] inputs) {
+		if (inputs != null && inputs.length != numberOfInputs)
+			throw new IllegalArgumentException(MessageFormat.format("Kernel expects {0} inputs, got {1}.", numberOfInputs, inputs.length));
+
+		double[][] leaves = new double[captured.size()][];
+		for (int slot = 0; slot < leaves.length; slot++)
+			leaves[slot] = (inputs != null && slot < numberOfInputs) ? inputs[slot].getValues() : captured.get(slot);
+		return leaves;
+	}
+
+	private RandomVariable evaluateValues(double[][] leaves) {
+		int numberOfPaths = getNumberOfPaths(leaves);
+		double[] result = SampleBufferPool.acquire(numberOfPaths);
+		forEachBlock(numberOfPaths, (registers, from, to) -> {
+			for (int path = from; path < to; path++) {
+				run(registers, leaves, path);
+				result[path] = registers[rootRegister];
+			}
+		});
+		return toRandomVariable(result, expectation);
+	}
+
+	private void run(double[] registers, double[][] leaves, int path) {
+		invoke(program, registers, leaves, path);
+	}
+
+	private interface Block {
+		void apply(double[] registers, int from, int to);
+	}
+
+	/*
+	 * Blocks of paths are evaluated in parallel, each with its own register file. Registers of captured constants
+	 * are set once per block.
+	 */
+	private void forEachBlock(int numberOfPaths, Block block) {
+		int numberOfBlocks = (numberOfPaths + pathsPerBlock - 1) / pathsPerBlock;
+		IntStream.range(0, numberOfBlocks).parallel().forEach(b -> block.apply(initialRegisters.clone(),
+				b * pathsPerBlock, Math.min((b + 1) * pathsPerBlock, numberOfPaths)));
+	}
+
+	private static int getNumberOfPaths(double[][] leaves) {
+		int numberOfPaths = 1;
+		for (double[] leaf : leaves) {
+			if (leaf.length > 1 && numberOfPaths > 1 && leaf.length != numberOfPaths)
+				throw new UnsupportedOperationException(MessageFormat.format("Kernel called with different operand dimensions: {0}, {1}.",
+						                                numberOfPaths, leaf.length));
+			numberOfPaths = Math.max(numberOfPaths, leaf.length);
+		}
+		return numberOfPaths;
+	}
+
+	private static RandomVariable toRandomVariable(double[] result, boolean expectation) {
+		if (!expectation)
+			return new RandomVariable(result);
+
+		double average = RandomVariable.average(result);
+		SampleBufferPool.release(result);
+		return new RandomVariable(new double[] { average });
+	}
+
+	private static void invoke(MethodHandle program, double[] registers, double[][] leaves, int path) {
+		try {
+			program.invokeExact(registers, leaves, path);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void invoke(MethodHandle adjointProgram, double[] registers, double[] adjoints) {
+		try {
+			adjointProgram.invokeExact(registers, adjoints);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Captured values are copied, since the values of the graph may be released or disposed of after compilation.
+	 */
+	private static double[] toArray(RandomVariable randomVariable) {
+		return randomVariable.getValues().clone();
+	}
+
+	/**
+	 * Translates a recorded graph into the forward and the adjoint program.
+	 */
+	private static class Compiler {
+
+		private final HashMap<Long, Integer> slots = new HashMap<>();
+		private final List<double[]> captured = new ArrayList<>();
+		private final HashMap<Long, Integer> registers = new HashMap<>();
+		private final List<Double> constants = new ArrayList<>();
+		private final List<MethodHandle> program = new ArrayList<>();
+		private final List<MethodHandle> adjointProgram = new ArrayList<>();
+		private final Set<Long> active = new HashSet<>();
+		private final int numberOfInputs;
+
+		Compiler(RandomVariable[] inputs) {
+			for (RandomVariable input : inputs) {
+				slots.put(input.id, captured.size());
+				registers.put(input.id, constants.size());
+				captured.add(toArray(input));
+				constants.add(0.);
+			}
+			numberOfInputs = inputs.length;
+		}
+
+		RandomVariableKernel compile(RandomVariable root, boolean expectation) {
+			Collection<RandomVariable> nodes = getNodes(root);
+			for (RandomVariable node : nodes)
+				emit(node);
+
+			ArrayList<RandomVariable> descending = new ArrayList<>(nodes);
+			Collections.reverse(descending);
+			for (RandomVariable node : descending)
+				emitAdjoint(node);
+
+			double[] initialRegisters = new double[constants.size()];
+			for (int register = 0; register < initialRegisters.length; register++)
+				initialRegisters[register] = constants.get(register);
+
+			return new RandomVariableKernel(sequence(program, 0, program.size(), STEP_TYPE),
+					sequence(adjointProgram, 0, adjointProgram.size(), ADJOINT_STEP_TYPE), initialRegisters, registers.get(root.id), captured, numberOfInputs, expectation);
+		}
+
+		private boolean isLeaf(RandomVariable node) {
+			return slots.containsKey(node.id) || node.operation == null || node.operation == Operation.EXPECT;
+		}
+
+		/**
+		 * @return The nodes of the graph below root, down to its leaves, in ascending order of their ids.
+		 */
+		private Collection<RandomVariable> getNodes(RandomVariable root) {
+			TreeMap<Long, RandomVariable> nodes = new TreeMap<>();
+			ArrayList<RandomVariable> stack = new ArrayList<>(Arrays.asList(root));
+			while (!stack.isEmpty()) {
+				RandomVariable node = stack.remove(stack.size() - 1);
+				if (nodes.putIfAbsent(node.id, node) == null && !isLeaf(node))
+					stack.addAll(node.deps);
+			}
+			return nodes.values();
+		}
+
+		private int register(RandomVariable node) {
+			return registers.get(node.id);
+		}
+
+		/**
+		 * Assigns a register to node and appends the instruction computing its value. Deterministic leaves are
+		 * held in the initial registers instead.
+		 */
+		private void emit(RandomVariable node) {
+			Integer slot = slots.get(node.id);
+			if (slot != null && slot < numberOfInputs) {
+				active.add(node.id);
+				program.add(load(register(node), slot));
+				return;
+			}
+
+			int register = constants.size();
+			registers.put(node.id, register);
+			constants.add(0.);
+
+			if (isLeaf(node)) {
+				if (node.isDeterministic())
+					constants.set(register, node.asFloatingPoint());
+				else {
+					slot = captured.size();
+					slots.put(node.id, slot);
+					captured.add(toArray(node));
+					program.add(load(register, slot));
+				}
+				return;
+			}
+
+			for (RandomVariable dependency : node.deps)
+				if (active.contains(dependency.id))
+					active.add(node.id);
+
+			int x = register(node.deps.get(0));
+			int y = node.deps.size() > 1 ? register(node.deps.get(1)) : -1;
+			int z = node.deps.size() > 2 ? register(node.deps.get(2)) : -1;
+
+			MethodHandle value;
+			switch (node.operation) {
+				case ADD:       value = read(ADD,  x, y);  break;
+				case SUB:       value = read(SUB,  x, y);  break;
+				case MUL:       value = read(MUL,  x, y);  break;
+				case DIV:       value = read(DIV,  x, y);  break;
+				case SQR:       value = read(SQR,  x);     break;
+				case SQRT:      value = read(SQRT, x);     break;
+				case EXP:       value = read(node.operationPrecision == Precision.FAST ? FAST_EXP : EXP, x);  break;
+				case LOG:       value = read(node.operationPrecision == Precision.FAST ? FAST_LOG : LOG, x);  break;
+				case CHO:       value = read(MethodHandles.insertArguments(CHOOSE, 3, node.h), x, y, z);  break;
+				case POW:       value = read(MethodHandles.insertArguments(POW, 1, node.parameter), x);  break;
+				case MAX:       value = read(MethodHandles.insertArguments(MAX, 1, node.parameter), x);  break;
+				case MIN:       value = read(MethodHandles.insertArguments(MIN, 1, node.parameter), x);  break;
+				case ABS:       value = read(ABS,  x);     break;
+				case NCDF:      value = read(NCDF, x);     break;
+				case NPDF:      value = read(NPDF, x);     break;
+				case DISCOUNT:  value = read(MethodHandles.insertArguments(DISCOUNT, 2, node.parameter), x, y);  break;
+				case FMA:       value = read(FMA,  x, y, z);  break;
+				case CUSTOMUNI: value = read(unbox(FUNCTION.bindTo(node.customFunction), 1), x);  break;
+				case CUSTOMBI:  value = read(unbox(BIFUNCTION.bindTo(node.customBiFunction), 2), x, y);  break;
+				case CUSTOMTRI: value = read(unbox(TRIFUNCTION.bindTo(node.customTriFunction), 3), x, y, z);  break;
+				default:        throw new UnsupportedOperationException("Operation " + node.operation + " cannot be compiled.");
+			}
+			program.add(store(register, value));
+		}
+
+		/**
+		 * Appends the instructions propagating the adjoint of node to those of its dependencies which depend on an
+		 * input. The partial derivatives read the registers left by the forward program.
+		 */
+		private void emitAdjoint(RandomVariable node) {
+			if (isLeaf(node) || !active.contains(node.id))
+				return;
+
+			int t = register(node);
+			int x = register(node.deps.get(0));
+			int y = node.deps.size() > 1 ? register(node.deps.get(1)) : -1;
+			int z = node.deps.size() > 2 ? register(node.deps.get(2)) : -1;
+
+			MethodHandle[] partials;
+			switch (node.operation) {
+				case ADD:       partials = new MethodHandle[] { constant(1.), constant(1.) };  break;
+				case SUB:       partials = new MethodHandle[] { constant(1.), constant(-1.) };  break;
+				case MUL:       partials = new MethodHandle[] { read(IDENTITY, y), read(IDENTITY, x) };  break;
+				case DIV:       partials = new MethodHandle[] { read(RECIPROCAL, y), read(DIV_DY, x, y) };  break;
+				case SQR:       partials = new MethodHandle[] { read(TWICE, x) };  break;
+				case SQRT:      partials = new MethodHandle[] { read(SQRT_DERIVATIVE, t) };  break;
+				case EXP:       partials = new MethodHandle[] { read(IDENTITY, t) };  break;
+				case LOG:       partials = new MethodHandle[] { read(RECIPROCAL, x) };  break;
+				case CHO:
+					partials = new MethodHandle[] {
+							read(MethodHandles.insertArguments(CHOOSE_DX, 3, node.h), x, y, z),
+							read(MethodHandles.insertArguments(CHOOSE_DY, 3, node.h), x, y, z),
+							read(MethodHandles.insertArguments(CHOOSE_DZ, 3, node.h), x, y, z) };
+					break;
+				case POW:       partials = new MethodHandle[] { read(MethodHandles.insertArguments(POW_DERIVATIVE, 1, node.parameter), x) };  break;
+				case MAX:       partials = new MethodHandle[] { read(MethodHandles.insertArguments(MAX_DERIVATIVE, 1, node.parameter), x) };  break;
+				case MIN:       partials = new MethodHandle[] { read(MethodHandles.insertArguments(MIN_DERIVATIVE, 1, node.parameter), x) };  break;
+				case ABS:       partials = new MethodHandle[] { read(SIGNUM, x) };  break;
+				case NCDF:      partials = new MethodHandle[] { read(NPDF, x) };  break;
+				case NPDF:      partials = new MethodHandle[] { read(NPDF_DERIVATIVE, x) };  break;
+				case DISCOUNT:
+					partials = new MethodHandle[] {
+							read(MethodHandles.insertArguments(DISCOUNT_DX, 2, node.parameter), x, y),
+							read(MethodHandles.insertArguments(DISCOUNT_DR, 2, node.parameter), x, y) };
+					break;
+				case FMA:       partials = new MethodHandle[] { read(IDENTITY, y), read(IDENTITY, x), constant(1.) };  break;
+				case CUSTOMUNI:
+					partials = new MethodHandle[] { read(unbox(FUNCTION.bindTo(node.customFunctionDerivative), 1), x) };
+					break;
+				case CUSTOMBI:
+					partials = new MethodHandle[] {
+							read(unbox(BIFUNCTION.bindTo(node.customBiFunctionDerivativeX), 2), x, y),
+							read(unbox(BIFUNCTION.bindTo(node.customBiFunctionDerivativeY), 2), x, y) };
+					break;
+				case CUSTOMTRI:
+					partials = new MethodHandle[] {
+							read(unbox(TRIFUNCTION.bindTo(node.customTriFunctionDerivativeX), 3), x, y, z),
+							read(unbox(TRIFUNCTION.bindTo(node.customTriFunctionDerivativeY), 3), x, y, z),
+							read(unbox(TRIFUNCTION.bindTo(node.customTriFunctionDerivativeZ), 3), x, y, z) };
+					break;
+				default:
+					throw new UnsupportedOperationException("Operation " + node.operation + " cannot be compiled.");
+			}
+
+			for (int k = 0; k < partials.length; k++)
+				if (active.contains(node.deps.get(k).id))
+					adjointProgram.add(accumulate(t, register(node.deps.get(k)), partials[k]));
+		}
+
+		/**
+		 * Composes the instructions from, ..., to - 1 into one handle running them in order, as a balanced tree, such
+		 * that the nesting depth is logarithmic in the number of instructions.
+		 */
+		private static MethodHandle sequence(List<MethodHandle> instructions, int from, int to, MethodType type) {
+			if (to - from == 0)
+				return MethodHandles.empty(type);
+			if (to - from == 1)
+				return instructions.get(from);
+			int middle = (from + to) >>> 1;
+			return MethodHandles.foldArguments(sequence(instructions, middle, to, type), sequence(instructions, from, middle, type));
+		}
+
+		/**
+		 * Returns the instruction (double[] registers, double[][] leaves, int path)void loading the sample of a leaf.
+		 */
+		private static MethodHandle load(int register, int slot) {
+			return MethodHandles.collectArguments(MethodHandles.insertArguments(SET, 1, register), 1,
+					MethodHandles.insertArguments(SAMPLE, 2, slot));
+		}
+
+		/**
+		 * Returns the instruction (double[] registers, double[][] leaves, int path)void storing the result of value,
+		 * a handle of type (double[] registers)double, in a register.
+		 */
+		private static MethodHandle store(int register, MethodHandle value) {
+			MethodHandle handle = MethodHandles.collectArguments(MethodHandles.insertArguments(SET, 1, register), 1, value);
+			handle = MethodHandles.permuteArguments(handle, MethodType.methodType(void.class, double[].class), 0, 0);
+			return MethodHandles.dropArguments(handle, 1, double[][].class, int.class);
+		}
+
+		/**
+		 * Returns the instruction (double[] registers, double[] adjoints)void adding partial times the adjoint of
+		 * the register node to the adjoint of the register dependency.
+		 */
+		private static MethodHandle accumulate(int node, int dependency, MethodHandle partial) {
+			MethodHandle handle = MethodHandles.collectArguments(MethodHandles.insertArguments(ACCUMULATE, 1, node, dependency), 1, partial);
+			return MethodHandles.permuteArguments(handle, ADJOINT_STEP_TYPE, 1, 0);
+		}
+
+		/**
+		 * Applies operation, a handle of type (double, ...)double, to the given registers and returns the resulting
+		 * handle of type (double[] registers)double.
+		 */
+		private static MethodHandle read(MethodHandle operation, int... registers) {
+			MethodHandle handle = operation;
+			for (int i = registers.length - 1; i >= 0; i--)
+				handle = MethodHandles.collectArguments(handle, i, MethodHandles.insertArguments(GET, 1, registers[i]));
+			return MethodHandles.permuteArguments(handle, READ_TYPE, new int[registers.length]);
+		}
+
+		private static MethodHandle constant(double value) {
+			return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, double[].class);
+		}
+
+		/**
+		 * Adapts a bound boxed functional interface to a primitive handle of the given arity.
+		 */
+		private static MethodHandle unbox(MethodHandle function, int arity) {
+			Class<?>[] parameters = new Class<?>[arity];
+			Arrays.fill(parameters, double.class);
+			return function.asType(MethodType.methodType(double.class, parameters));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A recording scope for AAD. While a tape is open on the current thread, all operations on random variables are
+ * recorded, even if their operands come from a non-recording factory, and the resulting nodes are registered
+ * with the tape. Closing the tape detaches all of its nodes from the graph and drops their adjoints at once, such that
+ * nothing recorded within the scope is retained beyond it:
+ * <pre>
+ * try (RandomVariableTape tape = RandomVariableTape.open()) {
+ *     RandomVariableDifferentiable volatility = tape.input(plainVolatility);
+ *     RandomVariableDifferentiable value = ...;
+ *     vega = value.getDerivativeWithRespectTo(volatility).asFloatingPoint();
+ * }
+ * </pre>
+ * Results have to be extracted before the tape is closed: afterwards, its nodes keep their values, but behave as
+ * plain constants. Tapes may be nested; nodes are registered with the innermost open tape.
+ *
+ * A tape opened with RandomVariableTape.open(true) instead returns the sample buffers of its nodes, and of the
+ * derivatives computed on them, to the SampleBufferPool when it is closed, such that repeated scopes of the same size
+ * run without allocating new buffers; nodes and derivatives whose values are still needed afterwards have to be passed
+ * to RandomVariableTape.keep().
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class RandomVariableTape implements AutoCloseable {
+
+	private static final ThreadLocal<Deque<RandomVariableTape>> openTapes = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final ArrayList<RandomVariable> nodes = new ArrayList<>();
+	private final Set<RandomVariable> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final boolean recycle;
+	private boolean closed = false;
+
+	private RandomVariableTape(boolean recycle) {
+		this.recycle = recycle;
+	}
+
+	/**
+	 * Opens a new tape on the current thread.
+	 * @return The tape, to be closed by the same thread.
+	 */
+	public static RandomVariableTape open() {
+		return open(false);
+	}
+
+	/**
+	 * Opens a new tape on the current thread.
+	 * @param recycle If true, the sample buffers of the nodes of the tape and of their derivatives are returned to the
+	 * SampleBufferPool when it is closed, except for those passed to keep().
+	 * @return The tape, to be closed by the same thread.
+	 */
+	public static RandomVariableTape open(boolean recycle) {
+		RandomVariableTape tape = new RandomVariableTape(recycle);
+		openTapes.get().push(tape);
+		return tape;
+	}
+
+	/**
+	 * Indicates whether a tape is open on the current thread.
+	 * @return true if operations are to be recorded regardless of their operands.
+	 */
+	static boolean isRecording() {
+		return !openTapes.get().isEmpty();
+	}
+
+	/**
+	 * Registers node with the innermost open tape of the current thread, if any.
+	 * @param node A node resulting from a recorded operation.
+	 */
+	static void register(RandomVariable node) {
+		RandomVariableTape tape = openTapes.get().peek();
+		if (tape != null)
+			tape.nodes.add(node);
+	}
+
+	/**
+	 * Returns a recorded leaf sharing the values of x, such that derivatives can be taken with respect to it; x can then
+	 * no longer be modified in place. The values of an intermediate node of a recorded graph are copied instead, since
+	 * they may be released.
+	 * @param x A random variable, e.g. from a non-recording factory.
+	 * @return A recorded leaf.
+	 */
+	public RandomVariableDifferentiable input(RandomVariable x) {
+		if (closed)
+			throw new IllegalStateException("Tape has already been closed.");
+		return new RandomVariableDifferentiable(x.getValuesForRecording());
+	}
+
+	/**
+	 * Marks results whose values are needed after the tape has been closed, such that their sample buffers are not
+	 * recycled.
+	 * @param results Nodes recorded on this tape, or derivatives of them.
+	 * @return this
+	 */
+	public RandomVariableTape keep(RandomVariable... results) {
+		kept.addAll(Arrays.asList(results));
+		return this;
+	}
+
+	/**
+	 * @return The number of nodes recorded on this tape.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Closes the tape: all of its nodes lose their dependencies, operations and adjoints, and are removed from the
+	 * interning cache. If the tape recycles, the sample buffers of the nodes and derivatives that have not been kept are
+	 * returned to the SampleBufferPool.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		Deque<RandomVariableTape> tapes = openTapes.get();
+		if (tapes.peek() != this)
+			throw new IllegalStateException("Tapes have to be closed in reverse order of opening.");
+		tapes.pop();
+		closed = true;
+
+		RandomVariable.forget(nodes);
+		for (RandomVariable node : nodes)          // ascending ids, released values are rematerialized before detaching
+			if (!recycle || kept.contains(node))
+				node.getValues();
+		for (RandomVariable node : nodes) {
+			node.deps = Collections.emptyList();
+			node.operation = null;
+			node.recording = false;
+			node.customFunction = node.customFunctionDerivative = null;
+			node.customBiFunction = node.customBiFunctionDerivativeX = node.customBiFunctionDerivativeY = null;
+			node.customTriFunction = node.customTriFunctionDerivativeX = node.customTriFunctionDerivativeY = node.customTriFunctionDerivativeZ = null;
+			if (node instanceof RandomVariableDifferentiable) {
+				RandomVariableDifferentiable differentiable = (RandomVariableDifferentiable)node;
+				if (recycle && differentiable.derivatives != null)
+					for (RandomVariable derivative : differentiable.derivatives.values())
+						if (!kept.contains(derivative))
+							derivative.dispose();
+				differentiable.derivatives = null;
+			}
+			if (recycle && !kept.contains(node))
+				node.dispose();
+		}
+		nodes.clear();
+		kept.clear();
+	}
+}
@@ -0,0 +1,74 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of sample buffers, i.e. double arrays holding the values of random variables, such that repeated valuations
+ * and reverse sweeps of the same size reuse their buffers instead of allocating new ones. Buffers are pooled per length,
+ * and at most SampleBufferPool.maximumBuffersPerLength buffers of each length are kept; further released buffers are
+ * left to the garbage collector. Buffers of length one, i.e. deterministic values, are never pooled.
+ * The pool is thread-safe.
+ *
+ * A buffer must only be released by its single owner, once nothing reads from it any more, see
+ * RandomVariable.dispose(). Buffers are released explicitly by dispose(), by a recycling RandomVariableTape, and by the
+ * reverse sweep for the adjoints it no longer needs; the pricers of Assignment2Implementation release their
+ * intermediates in this way, such that their steady-state revaluations allocate no sample buffers.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public final class SampleBufferPool {
+
+	/**
+	 * Maximum number of buffers of each length kept in the pool. Setting this to 0 disables pooling. Changes only
+	 * apply to lengths that have not been pooled before.
+	 */
+	public static volatile int maximumBuffersPerLength = 32;
+
+	private static final Map<Integer, ArrayBlockingQueue<double[]>> buffers = new ConcurrentHashMap<>();
+
+	private SampleBufferPool() {
+	}
+
+	/**
+	 * Returns a pooled buffer of the given length, or a new one if there is none. The contents of a pooled buffer
+	 * are undefined, such that every element has to be written before it is read.
+	 * @param length The number of samples.
+	 * @return A buffer of the given length.
+	 */
+	static double[] acquire(int length) {
+		if (length > 1) {
+			ArrayBlockingQueue<double[]> pooled = buffers.get(length);
+			double[] buffer = pooled != null ? pooled.poll() : null;
+			if (buffer != null)
+				return buffer;
+		}
+		return new double[length];
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use it any more.
+	 * @param buffer The buffer, may be null.
+	 */
+	static void release(double[] buffer) {
+		if (buffer == null || buffer.length <= 1 || maximumBuffersPerLength <= 0)
+			return;
+		buffers.computeIfAbsent(buffer.length, length -> new ArrayBlockingQueue<>(maximumBuffersPerLength)).offer(buffer);
+	}
+
+	/**
+	 * @return The number of buffers currently held by the pool.
+	 */
+	public static int size() {
+		return buffers.values().stream().mapToInt(ArrayBlockingQueue::size).sum();
+	}
+
+	/**
+	 * Drops all pooled buffers.
+	 */
+	public static void clear() {
+		buffers.clear();
+	}
+}
@@ -0,0 +1,336 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a MonteCarloTask on disjoint ranges of paths in several local worker processes, and merges their partial sums
+ * into a MonteCarloAccumulator.
+ *
+ * The paths are divided into blocks of a given size. Each block draws its normals from its own
+ * random number substream, derived from the seed and the index of the block only, and is valued within a recycling
+ * RandomVariableTape. Shards are contiguous ranges of blocks, such that the samples, and thus the results up to
+ * rounding of the sums, do not depend on the number of shards. Long runs can be checkpointed and resumed, see
+ * run(Path, int).
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class ShardedMonteCarlo {
+
+	/**
+	 * Prefix of the line by which a worker process reports its result, such that output of the task is not taken for it.
+	 */
+	private static final String resultMarker = "ShardedMonteCarlo.result ";
+
+	private final Class<? extends MonteCarloTask> task;
+	private final long seed;
+	private final long numberOfPaths;
+	private final int blockSize;
+	private final double[] parameters;
+
+	/**
+	 * @param task The valuation, which needs a no-argument constructor.
+	 * @param seed The seed from which the substreams of all blocks are derived.
+	 * @param numberOfPaths The total number of paths.
+	 * @param blockSize The number of paths of each block.
+	 * @param parameters The values of the parameters passed to the task.
+	 */
+	public ShardedMonteCarlo(Class<? extends MonteCarloTask> task, long seed, long numberOfPaths, int blockSize, double... parameters) {
+		this.task = task;
+		this.seed = seed;
+		this.numberOfPaths = numberOfPaths;
+		this.blockSize = blockSize;
+		this.parameters = parameters.clone();
+	}
+
+	public long getNumberOfBlocks() {
+		return (numberOfPaths + blockSize - 1) / blockSize;
+	}
+
+	/**
+	 * Runs all blocks in the current process.
+	 * @return The merged results.
+	 */
+	public MonteCarloAccumulator run() {
+		return runBlocks(newTask(task), seed, numberOfPaths, blockSize, 0, getNumberOfBlocks(), parameters);
+	}
+
+	/**
+	 * Runs all blocks in the current process, and persists the merged results of the blocks done so far, together
+	 * with the index of the next block, to checkpoint every blocksPerCheckpoint blocks. Since every block has its own
+	 * random number substream, the index of the next block is the position of the random number generator. If
+	 * checkpoint exists, the run is resumed from it, such that the result is the same as for an uninterrupted run.
+	 * Checkpoints are written by a background thread, replacing the file atomically, such that the valuation does not
+	 * wait for the disk; if the disk is slower than the valuation, only the latest checkpoint is written.
+	 * @param checkpoint The checkpoint file.
+	 * @param blocksPerCheckpoint The number of blocks between two checkpoints, at least 1.
+	 * @return The merged results.
+	 * @throws IllegalArgumentException If blocksPerCheckpoint is not positive, or if checkpoint belongs to a run of
+	 * a different task, seed, number of paths, block size or parameters.
+	 */
+	public MonteCarloAccumulator run(Path checkpoint, int blocksPerCheckpoint) {
+		if (blocksPerCheckpoint <= 0)
+			throw new IllegalArgumentException("The number of blocks per checkpoint must be positive, got " + blocksPerCheckpoint + ".");
+
+		MonteCarloTask instance = newTask(task);
+		MonteCarloAccumulator accumulator = new MonteCarloAccumulator(parameters.length);
+		long block = 0;
+		if (Files.exists(checkpoint)) {
+			Properties state = readCheckpoint(checkpoint);
+			block = Long.parseLong(state.getProperty("nextBlock"));
+			accumulator = MonteCarloAccumulator.decode(state.getProperty("accumulator"), parameters.length);
+		}
+
+		CheckpointWriter writer = new CheckpointWriter(checkpoint);
+		try {
+			for (long numberOfBlocks = getNumberOfBlocks(); block < numberOfBlocks; ) {
+				runBlock(instance, accumulator, seed, numberOfPaths, blockSize, block, parameters);
+				if (++block % blocksPerCheckpoint == 0 || block == numberOfBlocks)
+					writer.schedule(getCheckpoint(block, accumulator));
+			}
+		} finally {
+			writer.close();
+		}
+		return accumulator;
+	}
+
+	private Properties getCheckpoint(long nextBlock, MonteCarloAccumulator accumulator) {
+		Properties state = new Properties();
+		state.setProperty("task", task.getName());
+		state.setProperty("seed", Long.toString(seed));
+		state.setProperty("numberOfPaths", Long.toString(numberOfPaths));
+		state.setProperty("blockSize", Integer.toString(blockSize));
+		state.setProperty("parameters", Arrays.toString(parameters));
+		state.setProperty("nextBlock", Long.toString(nextBlock));
+		state.setProperty("accumulator", accumulator.encode());
+		return state;
+	}
+
+	private Properties readCheckpoint(Path checkpoint) {
+		Properties state = new Properties();
+		try (Reader reader = Files.newBufferedReader(checkpoint, StandardCharsets.UTF_8)) {
+			state.load(reader);
+		} catch (IOException e) {
+			throw new IllegalStateException("Checkpoint " + checkpoint + " cannot be read.", e);
+		}
+
+		Properties expected = getCheckpoint(0, new MonteCarloAccumulator(parameters.length));
+		for (String key : new String[] { "task", "seed", "numberOfPaths", "blockSize", "parameters" })
+			if (!expected.getProperty(key).equals(state.getProperty(key)))
+				throw new IllegalArgumentException(MessageFormat.format("Checkpoint {0} belongs to a different run: {1} is {2} instead of {3}.",
+						                           checkpoint, key, state.getProperty(key), expected.getProperty(key)));
+		return state;
+	}
+
+	/**
+	 * Writes checkpoints on a background thread. Checkpoints scheduled while a write is pending replace the pending one.
+	 */
+	private static class CheckpointWriter {
+		private final Path checkpoint;
+		private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "checkpoint-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		private final AtomicReference<Properties> pending = new AtomicReference<>();
+		private volatile IOException failure = null;
+
+		CheckpointWriter(Path checkpoint) {
+			this.checkpoint = checkpoint;
+		}
+
+		void schedule(Properties state) {
+			if (pending.getAndSet(state) == null)
+				executor.execute(() -> write(pending.getAndSet(null)));
+		}
+
+		private void write(Properties state) {
+			Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+			try {
+				try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+					state.store(writer, "Monte Carlo checkpoint");
+				}
+				Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Waits for the pending checkpoint to be written.
+		 */
+		void close() {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+					;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure != null)
+				throw new IllegalStateException("Checkpoint " + checkpoint + " cannot be written.", failure);
+		}
+	}
+
+	/**
+	 * Runs the blocks in the given number of worker processes, started with the class path and Java runtime of the
+	 * current process, and merges their results in the order of the shards.
+	 * @param numberOfShards The number of worker processes.
+	 * @return The merged results.
+	 */
+	public MonteCarloAccumulator run(int numberOfShards) {
+		long numberOfBlocks = getNumberOfBlocks();
+		List<Process> workers = new ArrayList<>(numberOfShards);
+		try {
+			for (int shard = 0; shard < numberOfShards; shard++)
+				workers.add(startWorker(numberOfBlocks * shard / numberOfShards, numberOfBlocks * (shard + 1) / numberOfShards));
+
+			MonteCarloAccumulator result = new MonteCarloAccumulator(parameters.length);
+			for (Process worker : workers)
+				result.merge(readResult(worker, parameters.length));
+			return result;
+		} catch (IOException e) {
+			throw new IllegalStateException("Worker process failed.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for worker processes.", e);
+		} finally {
+			for (Process worker : workers)
+				worker.destroy();
+		}
+	}
+
+	private Process startWorker(long firstBlock, long lastBlock) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardedMonteCarlo.class.getName());
+		command.add(task.getName());
+		command.add(Long.toString(seed));
+		command.add(Long.toString(numberOfPaths));
+		command.add(Integer.toString(blockSize));
+		command.add(Long.toString(firstBlock));
+		command.add(Long.toString(lastBlock));
+		for (double parameter : parameters)
+			command.add(Double.toString(parameter));
+
+		return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	private static MonteCarloAccumulator readResult(Process worker, int numberOfParameters) throws IOException, InterruptedException {
+		String result = null;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8))) {
+			for (String line; (line = reader.readLine()) != null; ) {
+				int marker = line.indexOf(resultMarker);           // the task may have left a line unterminated
+				if (marker >= 0)
+					result = line.substring(marker + resultMarker.length());
+				if (marker != 0)
+					System.out.println(marker > 0 ? line.substring(0, marker) : line);   // output of the task
+			}
+		}
+		int exitValue = worker.waitFor();
+		if (exitValue != 0 || result == null)
+			throw new IOException("Worker process exited with " + exitValue + (result == null ? " without a result." : "."));
+		return MonteCarloAccumulator.decode(result, numberOfParameters);
+	}
+
+	/**
+	 * Values the blocks firstBlock, ..., lastBlock - 1.
+	 */
+	static MonteCarloAccumulator runBlocks(MonteCarloTask task, long seed, long numberOfPaths, int blockSize,
+			long firstBlock, long lastBlock, double[] parameters) {
+		MonteCarloAccumulator accumulator = new MonteCarloAccumulator(parameters.length);
+		for (long block = firstBlock; block < lastBlock; block++)
+			runBlock(task, accumulator, seed, numberOfPaths, blockSize, block, parameters);
+		return accumulator;
+	}
+
+	/**
+	 * Values one block of paths and adds it to accumulator.
+	 */
+	static void runBlock(MonteCarloTask task, MonteCarloAccumulator accumulator, long seed, long numberOfPaths, int blockSize,
+			long block, double[] parameters) {
+		int size = (int)Math.min(blockSize, numberOfPaths - block * blockSize);
+		RandomVariableFactory factory = RandomVariable.factory(false);
+
+		double[] normals = SampleBufferPool.acquire(size);
+		Random random = new Random(getSubstreamSeed(seed, block));
+		for (int path = 0; path < size; path++)
+			normals[path] = random.nextGaussian();
+		RandomVariable normal = new RandomVariable(normals).setRecording(false);
+
+		try (RandomVariableTape tape = RandomVariableTape.open(true)) {
+			RandomVariableDifferentiable[] leaves = new RandomVariableDifferentiable[parameters.length];
+			for (int i = 0; i < parameters.length; i++)
+				leaves[i] = tape.input(factory.fromConstant(parameters[i]));
+
+			RandomVariable value = task.getValue(normal, leaves);
+			RandomVariable[] derivatives = new RandomVariable[parameters.length];
+			for (int i = 0; i < parameters.length; i++)
+				derivatives[i] = value instanceof RandomVariableDifferentiable
+						? (RandomVariable)((RandomVariableDifferentiable)value).getDerivativeWithRespectTo(leaves[i])
+						: factory.zero();
+			accumulator.add(size, value, derivatives);
+			for (RandomVariable derivative : derivatives)
+				derivative.dispose();
+		}
+		SampleBufferPool.release(normals);                 // read by the closed tape only, which dispose() does not know
+	}
+
+	/**
+	 * Derives the seed of the random number substream of a block, such that substreams of different blocks are
+	 * statistically independent.
+	 */
+	static long getSubstreamSeed(long seed, long block) {
+		return new SplittableRandom(new SplittableRandom(seed).nextLong() + block).nextLong();
+	}
+
+	static MonteCarloTask newTask(Class<? extends MonteCarloTask> task) {
+		try {
+			var constructor = task.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Task " + task.getName() + " cannot be instantiated.", e);
+		}
+	}
+
+	/**
+	 * Entry point of a worker process. Arguments: task class, seed, number of paths, block size, first block,
+	 * last block (exclusive), parameters. Writes the encoded MonteCarloAccumulator to System.out, on a line of its own
+	 * starting with a fixed marker, such that the task may write to System.out as well.
+	 * @param args The arguments.
+	 * @throws ClassNotFoundException If the task class is not on the class path.
+	 */
+	public static void main(String[] args) throws ClassNotFoundException {
+		Class<? extends MonteCarloTask> task = Class.forName(args[0]).asSubclass(MonteCarloTask.class);
+		double[] parameters = new double[args.length - 6];
+		for (int i = 0; i < parameters.length; i++)
+			parameters[i] = Double.parseDouble(args[i + 6]);
+
+		MonteCarloAccumulator result = runBlocks(newTask(task), Long.parseLong(args[1]), Long.parseLong(args[2]),
+				Integer.parseInt(args[3]), Long.parseLong(args[4]), Long.parseLong(args[5]), parameters);
+		System.out.println(resultMarker + result.encode());
+	}
+}
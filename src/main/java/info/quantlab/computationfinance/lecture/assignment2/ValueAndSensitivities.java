@@ -0,0 +1,66 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.util.Map;
+
+import net.finmath.aadexperiments.randomvalue.RandomValue;
+
+/**
+ * Value of a product together with its sensitivities to every input of the valuation, as returned by
+ * Assignment2Implementation. Sensitivities are looked up by the identity of the input, i.e., by the id of the
+ * RandomVariable passed to the valuation, or of a copy of it. Holds plain values only, no recorded graph; every
+ * getter returns a new random variable holding a copy of them, such that in-place operations of one caller do not
+ * change the results seen by others.
+ *
+ * The derivative with respect to a stochastic input, e.g. the Brownian motion, holds one value per path, such that
+ * a cached result holds a vector of the size of the input.
+ *
+ * @author Jakob Ullmann
+ *
+ */
+public class ValueAndSensitivities {
+
+	private final double[] value;
+	private final Map<Long, double[]> sensitivities;
+	private final long forwardRateId, volatilityId;
+
+	ValueAndSensitivities(double[] value, Map<Long, double[]> sensitivities, RandomValue forwardRate, RandomValue volatility) {
+		this.value = value;
+		this.sensitivities = sensitivities;
+		this.forwardRateId = ((RandomVariable)forwardRate).id;
+		this.volatilityId = ((RandomVariable)volatility).id;
+	}
+
+	public RandomVariable getValue() {
+		return getCopy(value);
+	}
+
+	/**
+	 * @param input One of the inputs of the valuation.
+	 * @return The derivative of the value with respect to the input, the sum over all arguments the input was passed
+	 * as; deterministic if the input is deterministic, the Frechet derivative otherwise.
+	 */
+	public RandomVariable getDerivativeWithRespectTo(RandomValue input) {
+		double[] derivative = input instanceof RandomVariable ? sensitivities.get(((RandomVariable)input).id) : null;
+		if (derivative == null)
+			throw new IllegalArgumentException("Not an input of the valuation.");
+		return getCopy(derivative);
+	}
+
+	/**
+	 * @return The derivative of the value with respect to the forward rate.
+	 */
+	public RandomVariable getDelta() {
+		return getCopy(sensitivities.get(forwardRateId));
+	}
+
+	/**
+	 * @return The derivative of the value with respect to the volatility.
+	 */
+	public RandomVariable getVega() {
+		return getCopy(sensitivities.get(volatilityId));
+	}
+
+	private static RandomVariable getCopy(double[] values) {
+		return new RandomVariable(values.clone()).setRecording(false);
+	}
+}
@@ -0,0 +1,45 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveMonteCarloTest {
+
+	/*
+	 * The run stops after the first batch reaching the target, and gives the same results as a sharded run over the
+	 * same number of paths.
+	 */
+	@Test
+	void testTargetError() {
+		int blockSize = 10000;
+		AdaptiveMonteCarlo monteCarlo = new AdaptiveMonteCarlo(new ShardedMonteCarloTest.Forward(), 3413, blockSize, 1.0, 0.3);
+		MonteCarloAccumulator result = monteCarlo.run(2E-3, 1000000);
+
+		long numberOfPaths = result.getNumberOfPaths();
+		assertTrue(result.getStandardError() <= 2E-3);
+		assertTrue(numberOfPaths < 1000000);
+		assertEquals(0, (numberOfPaths / blockSize) & (numberOfPaths / blockSize - 1));     // batches doubling in size
+		assertEquals(new ShardedMonteCarlo(ShardedMonteCarloTest.Forward.class, 3413, numberOfPaths, blockSize, 1.0, 0.3).run().encode(),
+				result.encode());
+		assertTrue(new ShardedMonteCarlo(ShardedMonteCarloTest.Forward.class, 3413, numberOfPaths / 2, blockSize, 1.0, 0.3).run()
+				.getStandardError() > 2E-3);
+	}
+
+	/*
+	 * The derivatives are estimated to their target, and the budget of paths is never exceeded.
+	 */
+	@Test
+	void testTargetDerivativeErrorAndBudget() {
+		AdaptiveMonteCarlo monteCarlo = new AdaptiveMonteCarlo(new ShardedMonteCarloTest.Forward(), 3413, 10000, 1.0, 0.3);
+
+		MonteCarloAccumulator result = monteCarlo.run(Double.POSITIVE_INFINITY, 5E-3, 1000000);
+		for (int i = 0; i < 2; i++)
+			assertTrue(result.getDerivativeStandardError(i) <= 5E-3);
+
+		MonteCarloAccumulator budget = monteCarlo.run(1E-6, 25000);
+		assertEquals(25000, budget.getNumberOfPaths());
+		assertTrue(budget.getStandardError() > 1E-6);
+	}
+}
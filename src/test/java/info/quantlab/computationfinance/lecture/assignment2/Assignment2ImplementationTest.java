@@ -1,10 +1,18 @@
 package info.quantlab.computationfinance.lecture.assignment2;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.util.function.Function;
+
 import org.junit.jupiter.api.Test;
 
 import info.quantlab.computationfinance.lecture.Assignment2Checker;
+import net.finmath.aadexperiments.randomvalue.RandomValue;
+import net.finmath.aadexperiments.randomvalue.RandomValueDifferentiable;
 
 public class Assignment2ImplementationTest {
 
@@ -42,4 +50,98 @@ public class Assignment2ImplementationTest {
 		System.out.println(result.message);
 		if(!result.success) fail(result.message);
 	}
+
+	/*
+	 * Value and sensitivities of one valuation agree with separate valuations, and repeated calls hit the cache.
+	 */
+	@Test
+	void testValueAndSensitivities() {
+		double[] samples = TestSamples.getNormals(3413, 100000);
+		for (int i = 0; i < samples.length; i++)
+			samples[i] *= Math.sqrt(2.0);
+
+		Assignment2Implementation implementation = new Assignment2Implementation();
+		RandomVariableFactory plain = RandomVariable.factory(false);
+		RandomValue forwardRate = plain.fromConstant(0.05), payoffUnit = plain.fromConstant(0.9), volatility = plain.fromConstant(0.3);
+		RandomValue brownianMotion = plain.fromArray(samples), strike = plain.fromConstant(0.05), maturity = plain.fromConstant(2.0);
+		RandomValue periodLength = plain.fromConstant(0.5);
+
+		ValueAndSensitivities digitalCaplet = implementation.getMonteCarloBlackModelValueAndSensitivitiesOfDigitalCaplet(forwardRate, payoffUnit,
+				volatility, brownianMotion, strike, maturity, periodLength);
+		assertEquals(((RandomVariable)implementation.getMonteCarloBlackModelValueOfDigitalCaplet(forwardRate, payoffUnit, volatility, brownianMotion,
+				strike, maturity, periodLength)).asFloatingPoint(), digitalCaplet.getValue().asFloatingPoint(), 1E-15);
+		assertEquals(((RandomVariable)implementation.getMonteCarloBlackModelDeltaOfDigitalCaplet(forwardRate, payoffUnit, volatility, brownianMotion,
+				strike, maturity, periodLength)).asFloatingPoint(), digitalCaplet.getDelta().asFloatingPoint(), 1E-12);
+
+		RandomVariableFactory recording = RandomVariable.factory();
+		RandomVariableDifferentiable recordedVolatility = (RandomVariableDifferentiable)recording.fromConstant(0.3);
+		RandomVariableDifferentiable recordedPayoffUnit = (RandomVariableDifferentiable)recording.fromConstant(0.9);
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)implementation.getMonteCarloBlackModelValueOfDigitalCaplet(forwardRate,
+				recordedPayoffUnit, recordedVolatility, brownianMotion, strike, maturity, periodLength);
+		assertEquals(((RandomVariable)value.getDerivativeWithRespectTo(recordedVolatility)).asFloatingPoint(), digitalCaplet.getVega().asFloatingPoint(), 1E-12);
+		assertEquals(((RandomVariable)value.getDerivativeWithRespectTo(recordedPayoffUnit)).asFloatingPoint(),
+				digitalCaplet.getDerivativeWithRespectTo(payoffUnit).asFloatingPoint(), 1E-12);
+		assertEquals(samples.length, digitalCaplet.getDerivativeWithRespectTo(brownianMotion).getValues().length);
+
+		assertSame(digitalCaplet, implementation.getMonteCarloBlackModelValueAndSensitivitiesOfDigitalCaplet(forwardRate, payoffUnit,
+				volatility, brownianMotion, strike, maturity, periodLength));
+
+		// results are copies, which callers may modify in place
+		double delta = digitalCaplet.getDelta().asFloatingPoint();
+		digitalCaplet.getDelta().multAssign(2.0);
+		digitalCaplet.getDerivativeWithRespectTo(brownianMotion).addAssign(1.0);
+		assertEquals(delta, digitalCaplet.getDelta().asFloatingPoint());
+		assertNotSame(digitalCaplet.getValue(), digitalCaplet.getValue());
+		assertNotSame(digitalCaplet, implementation.getMonteCarloBlackModelValueAndSensitivitiesOfDigitalCaplet(forwardRate, payoffUnit,
+				plain.fromConstant(0.3), brownianMotion, strike, maturity, periodLength));
+
+		ValueAndSensitivities forwardRateInArrears = implementation.getMonteCarloBlackModelValueAndSensitivitiesOfForwardRateInArrears(forwardRate,
+				payoffUnit, volatility, brownianMotion, maturity, periodLength);
+		assertEquals(((RandomVariable)implementation.getMonteCarloBlackModelValueOfForwardRateInArrears(forwardRate, payoffUnit, volatility, brownianMotion,
+				maturity, periodLength)).asFloatingPoint(), forwardRateInArrears.getValue().asFloatingPoint(), 1E-15);
+		assertEquals(((RandomVariable)implementation.getMonteCarloBlackModelDeltaOfForwardRateInArrears(forwardRate, payoffUnit, volatility, brownianMotion,
+				maturity, periodLength)).asFloatingPoint(), forwardRateInArrears.getDelta().asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Each value pricer, with one differentiable input and plain inputs otherwise, as in the assignment, gives the
+	 * derivatives of the combined valuation, even though it recycles the intermediates which are not recorded.
+	 */
+	@Test
+	void testDerivativeWithPlainInputs() {
+		double[] samples = TestSamples.getNormals(3413, 100000);
+		for (int i = 0; i < samples.length; i++)
+			samples[i] *= Math.sqrt(2.0);
+
+		Assignment2Implementation implementation = new Assignment2Implementation();
+		double[][] digitalCapletInputs = { { 0.05 }, { 0.9 }, { 0.3 }, samples, { 0.05 }, { 2.0 }, { 0.5 } };
+		double[][] forwardRateInArrearsInputs = { { 0.05 }, { 0.9 }, { 0.3 }, samples, { 2.0 }, { 0.5 } };
+
+		assertDerivativesWithPlainInputs(implementation, digitalCapletInputs, arguments -> implementation.getMonteCarloBlackModelValueOfDigitalCaplet(
+				arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], arguments[5], arguments[6]),
+				arguments -> implementation.getMonteCarloBlackModelValueAndSensitivitiesOfDigitalCaplet(
+						arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], arguments[5], arguments[6]));
+		assertDerivativesWithPlainInputs(implementation, forwardRateInArrearsInputs, arguments -> implementation.getMonteCarloBlackModelValueOfForwardRateInArrears(
+				arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], arguments[5]),
+				arguments -> implementation.getMonteCarloBlackModelValueAndSensitivitiesOfForwardRateInArrears(
+						arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], arguments[5]));
+	}
+
+	private static void assertDerivativesWithPlainInputs(Assignment2Implementation implementation, double[][] inputs,
+			Function<RandomValue[], RandomValue> valuation, Function<RandomValue[], ValueAndSensitivities> sensitivities) {
+		RandomValue[] plainInputs = new RandomValue[inputs.length];
+		for (int i = 0; i < inputs.length; i++)
+			plainInputs[i] = implementation.getRandomValueFromArray(inputs[i]);
+		ValueAndSensitivities expected = sensitivities.apply(plainInputs);
+
+		for (int i = 0; i < inputs.length; i++) {
+			RandomValue[] arguments = plainInputs.clone();
+			RandomValueDifferentiable input = implementation.getRandomDifferentiableValueFromArray(inputs[i]);
+			arguments[i] = input;
+
+			RandomValueDifferentiable value = (RandomValueDifferentiable)valuation.apply(arguments);
+			assertArrayEquals(expected.getDerivativeWithRespectTo(plainInputs[i]).getValues(),
+					((RandomVariable)value.getDerivativeWithRespectTo(input)).getValues(), 1E-12);
+		}
+	}
 }
@@ -0,0 +1,72 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+class CapletBatchPricerTest {
+
+	/*
+	 * Streaming several batches gives, in the order of the input, the value and delta of
+	 * Assignment2Implementation on the same sample.
+	 */
+	@Test
+	void testBatchPricing() throws IOException {
+		StringBuilder trades = new StringBuilder("id,forward,volatility,strike,maturity,periodLength,payoffUnit\n# comment\n\n");
+		for (int i = 0; i < 10; i++)
+			trades.append("caplet").append(i).append(',').append(0.05).append(',').append(0.2 + 0.01 * i).append(',')
+			      .append(0.04 + 0.002 * i).append(',').append(1.0 + 0.5 * i).append(",0.5,0.9\n");
+
+		int batchSize = CapletBatchPricer.batchSize;
+		StringWriter output = new StringWriter();
+		try {
+			CapletBatchPricer.batchSize = 3;
+			assertEquals(10, new CapletBatchPricer(10000, 3413).run(new BufferedReader(new StringReader(trades.toString())), output, null));
+		} finally {
+			CapletBatchPricer.batchSize = batchSize;
+		}
+
+		double[] samples = TestSamples.getNormals(3413, 10000);
+
+		String[] lines = output.toString().split("\n");
+		assertEquals(11, lines.length);
+		assertEquals("id,value,delta", lines[0]);
+		for (int i = 0; i < 10; i++) {
+			String[] columns = lines[i + 1].split(",");
+			assertEquals("caplet" + i, columns[0]);
+
+			RandomVariableFactory factory = RandomVariable.factory();
+			RandomVariable forwardRate = factory.fromConstant(0.05), payoffUnit = factory.fromConstant(0.9);
+			RandomVariable volatility = factory.fromConstant(0.2 + 0.01 * i), strike = factory.fromConstant(0.04 + 0.002 * i);
+			RandomVariable maturity = factory.fromConstant(1.0 + 0.5 * i), periodLength = factory.fromConstant(0.5);
+			RandomVariable brownianMotion = factory.fromArray(samples).mult(maturity.sqrt());
+
+			Assignment2Implementation implementation = new Assignment2Implementation();
+			double value = ((RandomVariable)implementation.getMonteCarloBlackModelValueOfDigitalCaplet(forwardRate, payoffUnit,
+					volatility, brownianMotion, strike, maturity, periodLength)).asFloatingPoint();
+			double delta = ((RandomVariable)implementation.getMonteCarloBlackModelDeltaOfDigitalCaplet(forwardRate, payoffUnit,
+					volatility, brownianMotion, strike, maturity, periodLength)).asFloatingPoint();
+
+			assertEquals(value, Double.parseDouble(columns[1]), 1E-12);
+			assertEquals(delta, Double.parseDouble(columns[2]), 1E-10);
+		}
+	}
+
+	/*
+	 * Malformed trades are reported with their line number.
+	 */
+	@Test
+	void testMalformedTrade() {
+		String trades = "a,0.05,0.2,0.04,1.0,0.5,0.9\nb,0.05,0.2,0.04,1.0\n";
+		IllegalArgumentException exception = assertThrows(IllegalArgumentException.class,
+				() -> new CapletBatchPricer(1000, 3413).run(new BufferedReader(new StringReader(trades)), new StringWriter(), null));
+		assertTrue(exception.getMessage().startsWith("Line 2:"));
+	}
+}
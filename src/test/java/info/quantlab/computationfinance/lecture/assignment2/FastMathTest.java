@@ -0,0 +1,54 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class FastMathTest {
+
+	/*
+	 * The relative error of exp is within the documented bound over the whole range of the approximation.
+	 */
+	@Test
+	void testExp() {
+		Random random = new Random(3413);
+		double maximumError = 0;
+		for (int i = 0; i < 1000000; i++) {
+			double x = (2 * random.nextDouble() - 1) * 708;
+			double exact = Math.exp(x);
+			maximumError = Math.max(maximumError, Math.abs(FastMath.exp(x) - exact) / exact);
+		}
+		assertTrue(maximumError < 2E-11, "Maximum relative error " + maximumError);
+
+		assertEquals(1.0, FastMath.exp(0.0));
+		assertEquals(Math.exp(709.5), FastMath.exp(709.5));
+		assertEquals(Double.POSITIVE_INFINITY, FastMath.exp(1000.0));
+		assertEquals(0.0, FastMath.exp(-1000.0));
+		assertTrue(Double.isNaN(FastMath.exp(Double.NaN)));
+	}
+
+	/*
+	 * The absolute error of log is within the documented bound for positive normal arguments, including those close
+	 * to 1 and to the boundaries of the reduction.
+	 */
+	@Test
+	void testLog() {
+		Random random = new Random(3413);
+		double maximumError = 0;
+		for (int i = 0; i < 1000000; i++) {
+			double x = i % 2 == 0 ? Math.exp((2 * random.nextDouble() - 1) * 700) : 0.5 + 1.5 * random.nextDouble();
+			maximumError = Math.max(maximumError, Math.abs(FastMath.log(x) - Math.log(x)));
+		}
+		assertTrue(maximumError < 3E-11, "Maximum absolute error " + maximumError);
+
+		assertEquals(0.0, FastMath.log(1.0));
+		assertEquals(Math.log(Double.MIN_VALUE), FastMath.log(Double.MIN_VALUE));
+		assertEquals(Double.NEGATIVE_INFINITY, FastMath.log(0.0));
+		assertEquals(Double.POSITIVE_INFINITY, FastMath.log(Double.POSITIVE_INFINITY));
+		assertTrue(Double.isNaN(FastMath.log(-1.0)));
+		assertTrue(Double.isNaN(FastMath.log(Double.NaN)));
+	}
+}
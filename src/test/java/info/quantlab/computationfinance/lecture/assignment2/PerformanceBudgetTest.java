@@ -0,0 +1,201 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import net.finmath.aadexperiments.randomvalue.RandomValue;
+
+/*
+ * Performance regression tests: the standard pricers at a fixed number of paths must stay within budgets of bytes
+ * allocated per path, summed over all threads, of graph nodes, and of wall time. Budgets can be configured by system
+ * properties, e.g. -Dperformance.digitalCapletDelta.bytesPerPath=200. Steady-state revaluations reuse all of their
+ * sample buffers, such that the allocation budgets are below a single sample vector, 8 bytes per path, per
+ * valuation: they catch a pricer that stops reusing even one buffer. The wall time budgets depend on the machine and
+ * are only checked with -Dperformance.wallTime=true, e.g. on a dedicated benchmark machine; they only guard against
+ * gross slowdowns.
+ */
+class PerformanceBudgetTest {
+
+	private static final int numberOfPaths = 100000;
+	private static final int repetitions = 5;
+
+	static double[] samples;
+
+	@BeforeAll
+	static void setup() {
+		samples = TestSamples.getNormals(3413, numberOfPaths);
+	}
+
+	/*
+	 * The Brownian increment is created once per test, such that the runs measure the revaluation of the pricer only.
+	 */
+	private static RandomVariable getBrownianIncrement(RandomVariableFactory factory, double maturity) {
+		return factory.fromArray(samples).mult(Math.sqrt(maturity));
+	}
+
+	private static long getBudget(String name, long defaultValue) {
+		return Long.getLong("performance." + name, defaultValue);
+	}
+
+	/*
+	 * Bytes allocated so far by each live thread, including the workers of parallel streams, by thread id.
+	 */
+	private static Map<Long, Long> getAllocatedBytesByThread() {
+		ThreadMXBean threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocatedBytes = new HashMap<>();
+		for (int i = 0; i < ids.length; i++)
+			if (bytes[i] >= 0)
+				allocatedBytes.put(ids[i], bytes[i]);
+		return allocatedBytes;
+	}
+
+	/*
+	 * Runs the pricer once to warm up the JIT and the SampleBufferPool, then checks the average allocation and wall
+	 * time of repeated runs against the budgets. The allocations of a thread which exits during the runs, e.g. an idle
+	 * pool worker, are lost, so the runs are then repeated.
+	 */
+	private static void assertWithinBudget(String name, long bytesPerPathBudget, long millisBudget, Supplier<RandomValue> pricer) {
+		Object sink = pricer.get();
+
+		long bytes = -1, millis = 0;
+		for (int attempt = 0; attempt < 3 && bytes < 0; attempt++) {
+			Map<Long, Long> before = getAllocatedBytesByThread();
+			long start = System.nanoTime();
+			for (int repetition = 0; repetition < repetitions; repetition++)
+				sink = pricer.get();
+			millis = (System.nanoTime() - start) / repetitions / 1000000;
+			Map<Long, Long> after = getAllocatedBytesByThread();
+
+			if (after.keySet().containsAll(before.keySet())) {
+				bytes = 0;
+				for (Map.Entry<Long, Long> thread : after.entrySet())
+					bytes += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+			}
+		}
+		Assumptions.assumeTrue(bytes >= 0, "Threads exited during every measurement of " + name + ".");
+		long bytesPerPath = bytes / repetitions / numberOfPaths;
+
+		System.out.println(name + ": " + bytesPerPath + " bytes per path, " + millis + " ms (" + sink + ")");
+		bytesPerPathBudget = getBudget(name + ".bytesPerPath", bytesPerPathBudget);
+		assertTrue(bytesPerPath <= bytesPerPathBudget, name + " allocates " + bytesPerPath + " bytes per path, budget " + bytesPerPathBudget);
+		if (Boolean.getBoolean("performance.wallTime")) {
+			millisBudget = getBudget(name + ".millis", millisBudget);
+			assertTrue(millis <= millisBudget, name + " takes " + millis + " ms, budget " + millisBudget);
+		}
+	}
+
+	private static RandomValue getDigitalCapletValue(RandomVariableFactory factory, RandomValue forwardRate, RandomValue brownianIncrement) {
+		return new Assignment2Implementation().getMonteCarloBlackModelValueOfDigitalCaplet(forwardRate, factory.fromConstant(0.9),
+				factory.fromConstant(0.3), brownianIncrement, factory.fromConstant(0.05), factory.fromConstant(2.0),
+				factory.fromConstant(0.5));
+	}
+
+	/*
+	 * Valuation without recording, whose intermediates are recycled through the SampleBufferPool.
+	 */
+	@Test
+	void testDigitalCapletValue() {
+		Assumptions.assumeTrue(((ThreadMXBean)ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported());
+		RandomVariableFactory factory = RandomVariable.factory(false);
+		RandomVariable brownianIncrement = getBrownianIncrement(factory, 2.0);
+		assertWithinBudget("digitalCapletValue", 4, 2000, () -> getDigitalCapletValue(factory, factory.fromConstant(0.05), brownianIncrement));
+	}
+
+	/*
+	 * Valuation and reverse sweep in a recycling RandomVariableTape, whose nodes and adjoints are recycled through the
+	 * SampleBufferPool.
+	 */
+	@Test
+	void testDigitalCapletDelta() {
+		Assumptions.assumeTrue(((ThreadMXBean)ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported());
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable brownianIncrement = getBrownianIncrement(factory, 2.0);
+		assertWithinBudget("digitalCapletDelta", 4, 4000, () -> new Assignment2Implementation().getMonteCarloBlackModelDeltaOfDigitalCaplet(
+				factory.fromConstant(0.05), factory.fromConstant(0.9), factory.fromConstant(0.3),
+				brownianIncrement, factory.fromConstant(0.05), factory.fromConstant(2.0), factory.fromConstant(0.5)));
+	}
+
+	/*
+	 * Valuation and reverse sweep of a payoff without indicator.
+	 */
+	@Test
+	void testForwardRateInArrearsDelta() {
+		Assumptions.assumeTrue(((ThreadMXBean)ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported());
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable brownianIncrement = getBrownianIncrement(factory, 2.0);
+		assertWithinBudget("forwardRateInArrearsDelta", 4, 4000, () -> new Assignment2Implementation().getMonteCarloBlackModelDeltaOfForwardRateInArrears(
+				factory.fromConstant(0.05), factory.fromConstant(0.9), factory.fromConstant(0.3),
+				brownianIncrement, factory.fromConstant(2.0), factory.fromConstant(0.5)));
+	}
+
+	/*
+	 * Average wall time of the valuation in milliseconds, after runs warming up the JIT and the SampleBufferPool.
+	 */
+	private static double getMillis(Supplier<RandomVariable> valuation) {
+		for (int warmUp = 0; warmUp < 10; warmUp++)
+			valuation.get().dispose();
+		long start = System.nanoTime();
+		for (int repetition = 0; repetition < 4 * repetitions; repetition++)
+			valuation.get().dispose();
+		return (System.nanoTime() - start) / 1E6 / (4 * repetitions);
+	}
+
+	/*
+	 * Throughput of a compiled kernel compared to the valuation of the plain graph, for the forward rate in arrears.
+	 * The kernel has to reproduce the valuation; with -Dperformance.wallTime=true, it also has to be faster, up to a
+	 * configurable percentage, e.g. -Dperformance.kernel.percentOfGraph=150.
+	 */
+	@Test
+	void testKernelThroughput() {
+		RandomVariableFactory plain = RandomVariable.factory(false);
+		RandomVariable plainIncrement = getBrownianIncrement(plain, 2.0);
+		Supplier<RandomVariable> graph = () -> (RandomVariable)new Assignment2Implementation().getMonteCarloBlackModelValueOfForwardRateInArrears(
+				plain.fromConstant(0.05), plain.fromConstant(0.9), plain.fromConstant(0.3), plainIncrement, plain.fromConstant(2.0),
+				plain.fromConstant(0.5));
+
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable normal = factory.fromArray(samples);
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable maturity = factory.fromConstant(2.0);
+		RandomVariable value = (RandomVariable)new Assignment2Implementation().getMonteCarloBlackModelValueOfForwardRateInArrears(forwardRate,
+				factory.fromConstant(0.9), volatility, normal.mult(maturity.sqrt()), maturity, factory.fromConstant(0.5));
+		RandomVariableKernel kernel = RandomVariableKernel.compile(value, normal, forwardRate, volatility);
+		Supplier<RandomVariable> compiled = () -> kernel.evaluate(normal, forwardRate, volatility);
+
+		assertEquals(graph.get().asFloatingPoint(), compiled.get().asFloatingPoint(), 1E-12);
+
+		double graphMillis = getMillis(graph), kernelMillis = getMillis(compiled);
+		System.out.println("forwardRateInArrears: graph " + graphMillis + " ms, kernel " + kernelMillis + " ms");
+		if (Boolean.getBoolean("performance.wallTime")) {
+			long budget = getBudget("kernel.percentOfGraph", 100);
+			assertTrue(kernelMillis <= graphMillis * budget / 100, "The kernel takes " + kernelMillis + " ms, the graph " + graphMillis + " ms");
+		}
+	}
+
+	/*
+	 * The recorded graph of the digital caplet must not grow, e.g. by operations which are no longer interned or fused.
+	 */
+	@Test
+	void testDigitalCapletGraphSize() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable value = (RandomVariable)getDigitalCapletValue(factory, factory.fromConstant(0.05), getBrownianIncrement(factory, 2.0));
+		int numberOfNodes = RandomVariableDifferentiable.getGraph(value).size();
+		long budget = getBudget("digitalCapletValue.nodes", 24);
+		System.out.println("digitalCapletValue: " + numberOfNodes + " nodes");
+		assertTrue(numberOfNodes <= budget, "The graph has " + numberOfNodes + " nodes, budget " + budget);
+	}
+}
@@ -0,0 +1,114 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import net.finmath.aadexperiments.randomvalue.RandomValue;
+
+class RandomVariableKernelTest {
+
+	/*
+	 * The compiled kernel has to reproduce the interpreted valuation and the AAD delta and vega,
+	 * also when it is evaluated on a new Brownian sample.
+	 */
+	@Test
+	void testForwardRateInArrears() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable normal = factory.fromArray(TestSamples.getNormals(3413, 100000));
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable maturity = factory.fromConstant(2.0);
+
+		RandomValue value = new Assignment2Implementation().getMonteCarloBlackModelValueOfForwardRateInArrears(forwardRate,
+				factory.fromConstant(0.9), volatility, normal.mult(maturity.sqrt()), maturity, factory.fromConstant(0.5));
+
+		RandomVariableKernel kernel = RandomVariableKernel.compile((RandomVariable)value, normal, forwardRate, volatility);
+
+		assertEquals(((RandomVariable)value).asFloatingPoint(), kernel.evaluate().asFloatingPoint(), 1E-12);
+
+		RandomVariable[] derivatives = kernel.evaluateDerivatives(normal, forwardRate, volatility);
+		assertEquals(((RandomVariable)((RandomVariableDifferentiable)value).getDerivativeWithRespectTo(forwardRate)).asFloatingPoint(),
+				derivatives[1].asFloatingPoint(), 1E-10);
+		assertEquals(((RandomVariable)((RandomVariableDifferentiable)value).getDerivativeWithRespectTo(volatility)).asFloatingPoint(),
+				derivatives[2].asFloatingPoint(), 1E-10);
+
+		RandomVariable otherNormal = factory.fromArray(TestSamples.getNormals(1234, 100000));
+		RandomValue otherValue = new Assignment2Implementation().getMonteCarloBlackModelValueOfForwardRateInArrears(forwardRate,
+				factory.fromConstant(0.9), volatility, otherNormal.mult(maturity.sqrt()), maturity, factory.fromConstant(0.5));
+
+		assertEquals(((RandomVariable)otherValue).asFloatingPoint(),
+				kernel.evaluate(otherNormal, forwardRate, volatility).asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Custom operations are replayed through their recorded functions.
+	 */
+	@Test
+	void testCustomOperation() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable X = factory.fromArray(TestSamples.getNormals(3413, 10000));
+
+		RandomVariable cosX = X.customOperation(x -> Math.cos(x), x -> -Math.sin(x)).mult(2.0);
+
+		RandomVariableKernel kernel = RandomVariableKernel.compile(cosX, X);
+		RandomVariable derivative = kernel.evaluateDerivatives(X)[0];
+		RandomVariable derivativeAAD = (RandomVariable)((RandomVariableDifferentiable)cosX).getDerivativeWithRespectTo((RandomVariableDifferentiable)X);
+
+		assertEquals(cosX.expectation().asFloatingPoint(), kernel.evaluate().expectation().asFloatingPoint(), 1E-12);
+		assertEquals(derivativeAAD.expectation().asFloatingPoint(), derivative.expectation().asFloatingPoint(), 1E-12);
+		assertEquals(derivativeAAD.squared().expectation().asFloatingPoint(), derivative.squared().expectation().asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * The fused operations are compiled with their built-in derivatives.
+	 */
+	@Test
+	void testFusedOperations() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable X = factory.fromArray(TestSamples.getNormals(3413, 10000));
+		RandomVariableDifferentiable rate = (RandomVariableDifferentiable)factory.fromConstant(0.03);
+
+		RandomVariable Y = X.mult(0.2).add(1.0);
+		RandomVariable value = Y.pow(1.5).multAdd(X.normalCdf(), X.normalPdf()).add(X.abs().floor(0.5).cap(1.5))
+				.discountContinuously(rate, 2.0).expectation();
+
+		RandomVariableKernel kernel = RandomVariableKernel.compile(value, X, rate);
+		RandomVariable[] derivatives = kernel.evaluateDerivatives(X, rate);
+		RandomVariableDifferentiable differentiable = (RandomVariableDifferentiable)value;
+
+		assertEquals(value.asFloatingPoint(), kernel.evaluate().asFloatingPoint(), 1E-12);
+		assertEquals(((RandomVariable)differentiable.getDerivativeWithRespectTo((RandomVariableDifferentiable)X)).expectation().asFloatingPoint(),
+				derivatives[0].expectation().asFloatingPoint(), 1E-12);
+		assertEquals(((RandomVariable)differentiable.getDerivativeWithRespectTo(rate)).asFloatingPoint(),
+				derivatives[1].asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Every node is evaluated once per path, however often it is shared: the graph of sqrt(x * x), nested 30 times,
+	 * has 60 nodes, but 2^30 paths from the root to the input.
+	 */
+	@Test
+	void testDeepSharedGraph() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable X = factory.fromArray(TestSamples.getNormals(3413, 10000));
+
+		RandomVariable value = X;
+		for (int i = 0; i < 30; i++)
+			value = value.mult(value).sqrt();
+		RandomVariable root = value;
+
+		RandomVariable[] derivatives = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+			RandomVariableKernel kernel = RandomVariableKernel.compile(root, X);
+			assertEquals(X.abs().expectation().asFloatingPoint(), kernel.evaluate().expectation().asFloatingPoint(), 1E-12);
+			return kernel.evaluateDerivatives(X);
+		});
+		RandomVariable derivativeAAD = (RandomVariable)((RandomVariableDifferentiable)root).getDerivativeWithRespectTo((RandomVariableDifferentiable)X);
+
+		assertEquals(derivativeAAD.expectation().asFloatingPoint(), derivatives[0].expectation().asFloatingPoint(), 1E-12);
+		assertEquals(X.div(X.abs()).expectation().asFloatingPoint(), derivatives[0].expectation().asFloatingPoint(), 1E-12);
+	}
+}
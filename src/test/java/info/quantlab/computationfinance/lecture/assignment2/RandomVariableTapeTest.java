@@ -0,0 +1,78 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RandomVariableTapeTest {
+
+	/*
+	 * Operations on non-recording random variables are recorded only within the scope of a tape,
+	 * and the nodes of a tape are detached when it is closed.
+	 */
+	@Test
+	void testScopedRecording() {
+		double[] samples = TestSamples.getNormals(3413, 100000);
+
+		RandomVariableFactory factory = RandomVariable.factory(false);
+		RandomVariable X = factory.fromArray(samples);
+
+		assertNull(X.mult(0.3).exp().operation);
+
+		for (double sigma : new double[] { 0.1, 0.2, 0.3 }) {
+			RandomVariableDifferentiable value;
+			try (RandomVariableTape tape = RandomVariableTape.open()) {
+				RandomVariableDifferentiable volatility = tape.input(factory.fromConstant(sigma));
+				value = (RandomVariableDifferentiable)X.mult(volatility).exp().expectation();
+
+				assertTrue(tape.size() > 0);
+
+				// d/dsigma E[exp(sigma X)] = E[X exp(sigma X)]
+				double vega = ((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint();
+				assertEquals(X.mult(X.mult(sigma).exp()).expectation().asFloatingPoint(), vega, 1E-12);
+			}
+
+			assertTrue(value.deps.isEmpty());
+			assertNull(value.derivatives);
+			assertFalse(value.recording);
+			assertEquals(X.mult(sigma).exp().expectation().asFloatingPoint(), value.asFloatingPoint(), 1E-12);
+		}
+
+		assertNull(X.mult(0.3).exp().expectation().operation);
+	}
+
+	/*
+	 * Results of operations on recording random variables that were cached within a tape are not returned after the
+	 * tape has been closed, since they have been detached from their operands.
+	 */
+	@Test
+	void testCachedResultsAfterClose() {
+		double[] samples = TestSamples.getNormals(3413, 10000);
+
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable a = (RandomVariableDifferentiable)factory.fromConstant(2.0);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+		RandomVariable Y = X.mult(volatility);
+
+		try (RandomVariableTape tape = RandomVariableTape.open()) {
+			a.exp();
+			a.log();
+			a.sqrt();
+			Y.expectation();
+			Y.variance();
+			assertTrue(tape.size() >= 5);                   // the cached results are nodes of the tape
+		}
+
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)a.exp().add(a.log()).add(a.sqrt());
+		assertEquals(Math.exp(2.0) + 1. / 2.0 + .5 / Math.sqrt(2.0), ((RandomVariable)value.getDerivativeWithRespectTo(a)).asFloatingPoint(), 1E-12);
+
+		RandomVariableDifferentiable expectation = (RandomVariableDifferentiable)Y.expectation();
+		assertEquals(X.expectation().asFloatingPoint(), ((RandomVariable)expectation.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+		RandomVariableDifferentiable variance = (RandomVariableDifferentiable)Y.variance();
+		assertEquals(2 * 0.3 * X.variance().asFloatingPoint(), ((RandomVariable)variance.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+	}
+}
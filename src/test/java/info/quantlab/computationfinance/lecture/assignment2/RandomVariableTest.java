@@ -0,0 +1,767 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import net.finmath.aadexperiments.randomvalue.RandomValue;
+import net.finmath.functions.NormalDistribution;
+import net.finmath.montecarlo.RandomVariableFromDoubleArray;
+
+class RandomVariableTest {
+
+	static double[] samples;
+
+	@BeforeAll
+	static void setup() {
+		samples = TestSamples.getNormals(3413, 100000);
+	}
+
+	private static double getDeltaOfForwardRateInArrears() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariable maturity = factory.fromConstant(2.0);
+		RandomValue delta = new Assignment2Implementation().getMonteCarloBlackModelDeltaOfForwardRateInArrears(forwardRate,
+				factory.fromConstant(0.9), factory.fromConstant(0.3), factory.fromArray(samples).mult(maturity.sqrt()), maturity,
+				factory.fromConstant(0.5));
+		return ((RandomVariable)delta).asFloatingPoint();
+	}
+
+	/*
+	 * Identical operations on identical operands return the same node, without changing the derivatives.
+	 */
+	@Test
+	void testInterning() {
+		RandomVariable X = RandomVariable.factory().fromArray(samples);
+		RandomVariable Y = X.squared();
+
+		assertSame(X.add(Y), X.add(Y));
+		assertSame(X.mult(Y).exp(), X.mult(Y).exp());
+		assertNotSame(X.add(Y), Y.add(X));
+
+		// scalar operands are interned by their value
+		assertSame(Y.mult(.5), Y.mult(.5));
+		assertSame(X.add(1.0).div(2.0), X.add(1.0).div(2.0));
+		assertNotSame(X.add(1.0), X.add(2.0));
+		assertNotSame(X.add(1.0), X.add(X.getFactory().fromConstant(1.0)));
+
+		double delta = getDeltaOfForwardRateInArrears();
+
+		int internCacheSize = RandomVariable.internCacheSize;
+		try {
+			RandomVariable.internCacheSize = 0;
+			assertNotSame(X.add(Y), X.add(Y));
+			assertEquals(getDeltaOfForwardRateInArrears(), delta, 1E-12);
+		} finally {
+			RandomVariable.internCacheSize = internCacheSize;
+		}
+	}
+
+	/*
+	 * Values not needed by the reverse sweep are released, and rematerialized on access.
+	 */
+	@Test
+	void testReleaseForwardValues() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+
+		RandomVariable diffusion = X.mult(volatility);
+		RandomVariable exponent = diffusion.sub(volatility.squared().mult(.5));
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)exponent.exp().add(X.squared()).expectation();
+
+		double expectation = diffusion.expectation().asFloatingPoint();
+		double vega = ((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint();
+
+		assertTrue(value.releaseForwardValues() > 0);
+		assertNull(diffusion.values);
+		assertNull(exponent.exp().add(X.squared()).values);
+
+		RandomVariableDifferentiable valueAfterRelease = (RandomVariableDifferentiable)exponent.exp().add(X.squared()).add(0.0).expectation();
+		assertEquals(vega, ((RandomVariable)valueAfterRelease.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+		assertEquals(expectation, diffusion.sub(factory.zero()).expectation().asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Adjoints of intermediate nodes are released after the sweep, unless requested.
+	 */
+	@Test
+	void testAdjointRelease() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+
+		RandomVariableDifferentiable diffusion = (RandomVariableDifferentiable)X.mult(volatility);
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)diffusion.exp().expectation();
+
+		double vega = ((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint();
+		assertFalse(value.derivatives.containsKey(diffusion.id));
+		assertFalse(value.derivatives.containsKey(diffusion.exp().id));
+
+		RandomVariable derivative = (RandomVariable)value.getDerivativeWithRespectTo(diffusion);
+		assertEquals(value.asFloatingPoint(), derivative.expectation().asFloatingPoint(), 1E-12);
+		assertEquals(vega, ((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+	}
+
+	private static RandomValue getValueOfDigitalCaplet(RandomVariableFactory factory) {
+		RandomVariable maturity = factory.fromConstant(2.0);
+		return new Assignment2Implementation().getMonteCarloBlackModelValueOfDigitalCaplet(factory.fromConstant(0.05),
+				factory.fromConstant(0.9), factory.fromConstant(0.3), factory.fromArray(samples).mult(maturity.sqrt()),
+				factory.fromConstant(0.06), maturity, factory.fromConstant(0.5));
+	}
+
+	/*
+	 * Operations on random variables of a non-recording factory do not record a graph.
+	 */
+	@Test
+	void testNonRecordingValuation() {
+		RandomVariable value = (RandomVariable)getValueOfDigitalCaplet(RandomVariable.factory(false));
+
+		assertFalse(value instanceof RandomVariableDifferentiable);
+		assertNull(value.operation);
+		assertTrue(value.deps.isEmpty());
+		assertEquals(((RandomVariable)getValueOfDigitalCaplet(RandomVariable.factory())).asFloatingPoint(), value.asFloatingPoint(), 1E-12);
+
+		// non-recording random variables act as constants in recorded operations
+		RandomVariable X = RandomVariable.factory(false).fromArray(samples);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)RandomVariable.factory().fromConstant(0.3);
+		RandomVariableDifferentiable variance = (RandomVariableDifferentiable)X.mult(volatility).squared().expectation();
+		assertEquals(2 * X.squared().expectation().asFloatingPoint() * 0.3,
+				((RandomVariable)variance.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * In-place operations give the same results as their counterparts, and invalidate cached results.
+	 */
+	@Test
+	void testInPlaceOperations() {
+		RandomVariableFactory factory = RandomVariable.factory(false);
+		RandomVariable X = factory.fromArray(samples);
+		RandomVariable rate = X.mult(0.01).add(0.03);
+
+		RandomVariable sum = factory.zero(), account = factory.one();
+		RandomVariable expectedSum = factory.zero(), expectedAccount = factory.one();
+		for (int period = 0; period < 10; period++) {
+			sum.addProduct(X, account).addAssign(0.5);
+			expectedSum = expectedSum.add(X.mult(expectedAccount)).add(0.5);
+			account.accrue(rate, 0.5);
+			expectedAccount = expectedAccount.mult(rate.mult(0.5).add(1.0));
+		}
+		assertEquals(expectedSum.expectation().asFloatingPoint(), sum.expectation().asFloatingPoint(), 1E-12);
+		assertEquals(expectedSum.variance().asFloatingPoint(), sum.variance().asFloatingPoint(), 1E-12);
+		assertEquals(expectedAccount.expectation().asFloatingPoint(), account.expectation().asFloatingPoint(), 1E-12);
+
+		RandomVariable exp = X.exp();
+		double expectation = exp.expectation().asFloatingPoint();
+		long id = exp.id;
+		exp.multAssign(2.0);
+		assertNotSame(exp, X.exp());
+		assertTrue(exp.id != id);
+		assertEquals(2 * expectation, exp.expectation().asFloatingPoint(), 1E-12);
+		assertEquals(expectation, X.exp().expectation().asFloatingPoint(), 1E-12);
+
+		assertThrows(UnsupportedOperationException.class, () -> RandomVariable.factory().fromArray(samples).addAssign(1.0));
+	}
+
+	/*
+	 * Random variables read by a recorded graph cannot be modified in place, while copies of them can.
+	 */
+	@Test
+	void testInPlaceOperationsOnRecordedOperands() {
+		RandomVariableFactory factory = RandomVariable.factory(false);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)RandomVariable.factory().fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples), Y = factory.fromArray(samples);
+
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)X.mult(volatility).exp().expectation();
+		assertThrows(UnsupportedOperationException.class, () -> X.multAssign(2.0));
+		assertThrows(UnsupportedOperationException.class, () -> new RandomVariable(X).addAssign(1.0));
+		assertEquals(X.mult(0.3).exp().mult(X).expectation().asFloatingPoint(),
+				((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+
+		RandomVariable copy = X.add(0.0);
+		copy.multAssign(2.0);
+		assertEquals(2 * X.expectation().asFloatingPoint(), copy.expectation().asFloatingPoint(), 1E-12);
+
+		try (RandomVariableTape tape = RandomVariableTape.open()) {
+			tape.input(Y);
+		}
+		assertThrows(UnsupportedOperationException.class, () -> Y.addAssign(1.0));
+	}
+
+	/*
+	 * Quantiles agree with the order statistics of the sorted samples if some samples are infinite, or so large that
+	 * the range of the samples overflows.
+	 */
+	@Test
+	void testQuantileOfExtremeSamples() {
+		double[] extreme = samples.clone();
+		extreme[0] = Double.NEGATIVE_INFINITY;
+		extreme[1] = Double.NEGATIVE_INFINITY;
+		extreme[2] = Double.POSITIVE_INFINITY;
+		extreme[3] = -Double.MAX_VALUE;
+		extreme[4] = Double.MAX_VALUE;
+		RandomVariable X = RandomVariable.factory(false).fromArray(extreme);
+		RandomVariable logarithm = RandomVariable.factory(false).fromArray(samples).floor(0.0).log();   // log(0) = -Infinity
+
+		for (RandomVariable randomVariable : new RandomVariable[] { X, logarithm }) {
+			double[] sorted = randomVariable.getValues().clone();
+			Arrays.sort(sorted);
+			for (double level : new double[] { 0.0, 0.00001, 0.00002, 0.00003, 0.00004, 0.025, 0.5, 0.99, 0.99999, 1.0 })
+				assertEquals(sorted[Math.max(0, (int)Math.ceil(level * sorted.length) - 1)], randomVariable.getQuantile(level), 0.0);
+		}
+	}
+
+	/*
+	 * Quantiles agree with the order statistics of the sorted samples, also in the presence of ties.
+	 */
+	@Test
+	void testQuantile() {
+		RandomVariable X = RandomVariable.factory(false).fromArray(samples);
+		RandomVariable rounded = X.customOperation(x -> (double)Math.round(4 * x));
+
+		for (RandomVariable randomVariable : new RandomVariable[] { X, rounded }) {
+			double[] sorted = randomVariable.getValues().clone();
+			Arrays.sort(sorted);
+			for (double level : new double[] { 0.0, 0.001, 0.025, 0.5, 0.99, 1.0 })
+				assertEquals(sorted[Math.max(0, (int)Math.ceil(level * sorted.length) - 1)], randomVariable.getQuantile(level), 0.0);
+		}
+		assertEquals(-X.getQuantile(0.01), X.getValueAtRisk(0.99), 0.0);
+	}
+
+	/*
+	 * The expected shortfall is the average loss within the tail, and differentiable.
+	 */
+	@Test
+	void testExpectedShortfall() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+
+		double[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		int numberOfTailSamples = (int)Math.ceil(0.025 * sorted.length);
+		double tail = 0;
+		for (int i = 0; i < numberOfTailSamples; i++)
+			tail += sorted[i];
+		double expectedShortfall = -tail / numberOfTailSamples;
+
+		assertEquals(expectedShortfall, X.expectedShortfall(0.975).asFloatingPoint(), 1E-12);
+
+		// ES(sigma X) = sigma ES(X)
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)X.mult(volatility).expectedShortfall(0.975);
+		assertEquals(0.3 * expectedShortfall, value.asFloatingPoint(), 1E-12);
+		assertEquals(expectedShortfall, ((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Derivatives of an expectation with respect to constants are accumulated as scalars, and agree with the
+	 * expectation of the pathwise derivative.
+	 */
+	@Test
+	void testScalarAdjoints() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+
+		RandomVariableDifferentiable payoff = (RandomVariableDifferentiable)X.mult(volatility).sub(volatility.squared().mult(.5)).exp()
+				.mult(forwardRate.add(1.0)).div(volatility.add(forwardRate));
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)payoff.expectation();
+
+		for (RandomVariableDifferentiable parameter : new RandomVariableDifferentiable[] { forwardRate, volatility }) {
+			RandomVariable derivative = (RandomVariable)value.getDerivativeWithRespectTo(parameter);
+			assertEquals(1, value.derivatives.get(parameter.id).values.length);
+			assertEquals(((RandomVariable)payoff.getDerivativeWithRespectTo(parameter)).expectation().asFloatingPoint(),
+					derivative.asFloatingPoint(), 1E-12);
+		}
+		assertTrue(((RandomVariable)payoff.getDerivativeWithRespectTo(volatility)).values.length > 1);
+	}
+
+	/*
+	 * The parallel reverse sweep over many caplets sharing the same samples and parameters gives the same derivatives
+	 * as the sequential one, up to the order of accumulation.
+	 */
+	@Test
+	void testParallelReverseSweep() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+
+		RandomVariable forward = X.mult(volatility).sub(volatility.squared().mult(.5)).exp().mult(forwardRate);
+		RandomVariable portfolio = factory.fromConstant(0.0);
+		for (int strikeIndex = 0; strikeIndex < 50; strikeIndex++)
+			portfolio = portfolio.add(forward.add(-0.01 - 0.001 * strikeIndex).choose(factory.fromConstant(1.0), factory.fromConstant(0.0)).expectation());
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)portfolio;
+
+		double[] sequential = new double[2], parallel = new double[2];
+		RandomVariableDifferentiable[] parameters = { forwardRate, volatility };
+		try {
+			for (int i = 0; i < parameters.length; i++)
+				sequential[i] = ((RandomVariable)value.getDerivativeWithRespectTo(parameters[i])).asFloatingPoint();
+
+			RandomVariableDifferentiable.parallelReverseSweep = true;
+			value.derivatives = null;
+			for (int i = 0; i < parameters.length; i++)
+				parallel[i] = ((RandomVariable)value.getDerivativeWithRespectTo(parameters[i])).asFloatingPoint();
+		} finally {
+			RandomVariableDifferentiable.parallelReverseSweep = false;
+		}
+
+		for (int i = 0; i < parameters.length; i++)
+			assertEquals(sequential[i], parallel[i], 1E-12 * Math.max(1.0, Math.abs(sequential[i])));
+	}
+
+	/*
+	 * The parallel reverse sweep rematerializes released values, and on failure returns only once no task is
+	 * running any more, without keeping the partial derivatives.
+	 */
+	@Test
+	void testParallelReverseSweepFailure() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+		AtomicInteger running = new AtomicInteger();
+
+		RandomVariable forward = X.mult(volatility).sub(volatility.squared().mult(.5)).exp();
+		RandomVariable portfolio = factory.fromConstant(0.0), failing = factory.fromConstant(0.0);
+		for (int strikeIndex = 0; strikeIndex < 50; strikeIndex++) {
+			portfolio = portfolio.add(forward.add(-0.001 * strikeIndex).customOperation(x -> x, x -> {
+				running.incrementAndGet();
+				double derivative = Math.tanh(x);
+				running.decrementAndGet();
+				return derivative;
+			}).expectation());
+			failing = failing.add(forward.add(-0.001 * strikeIndex).customOperation(x -> x, x -> {
+				throw new ArithmeticException();
+			}).expectation());
+		}
+		portfolio.releaseValues();
+		forward.releaseValues();
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)portfolio.add(failing);
+
+		try {
+			RandomVariableDifferentiable.parallelReverseSweep = true;
+			assertThrows(ArithmeticException.class, () -> value.getDerivativeWithRespectTo(volatility));
+			assertEquals(0, running.get());
+			assertThrows(ArithmeticException.class, () -> value.getDerivativeWithRespectTo(volatility));
+			assertNull(value.derivatives);
+
+			RandomVariableDifferentiable succeeding = (RandomVariableDifferentiable)portfolio;
+			double parallel = ((RandomVariable)succeeding.getDerivativeWithRespectTo(volatility)).asFloatingPoint();
+			RandomVariableDifferentiable.parallelReverseSweep = false;
+			succeeding.derivatives = null;
+			double sequential = ((RandomVariable)succeeding.getDerivativeWithRespectTo(volatility)).asFloatingPoint();
+			assertEquals(sequential, parallel, 1E-12 * Math.max(1.0, Math.abs(sequential)));
+		} finally {
+			RandomVariableDifferentiable.parallelReverseSweep = false;
+		}
+	}
+
+	/*
+	 * The tiled reverse sweep gives the same derivatives as the sequential one, for a deterministic root with an
+	 * expectation inside the graph, as for the pathwise derivatives of a stochastic root.
+	 */
+	@Test
+	void testTiledReverseSweep() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples);
+
+		RandomVariable forward = X.mult(volatility).sub(volatility.squared().mult(.5)).exp().mult(forwardRate);
+		RandomVariable payoff = forward.div(forward.expectation()).log().add(1.0).squared().sqrt();
+		for (int strikeIndex = 0; strikeIndex < 40; strikeIndex++)
+			payoff = payoff.add(forward.add(-0.04 - 0.001 * strikeIndex).choose(forward, factory.fromConstant(0.0)));
+		RandomVariableDifferentiable[] roots = { (RandomVariableDifferentiable)payoff.expectation(), (RandomVariableDifferentiable)payoff };
+		RandomVariableDifferentiable[] parameters = { forwardRate, volatility };
+
+		for (RandomVariableDifferentiable root : roots)
+			for (RandomVariableDifferentiable parameter : parameters) {
+				root.derivatives = null;
+				double[] sequential = ((RandomVariable)root.getDerivativeWithRespectTo(parameter)).getValues().clone();
+				double[] tiled;
+				try {
+					RandomVariableDifferentiable.reverseSweepTileSize = 1000;
+					root.derivatives = null;
+					tiled = ((RandomVariable)root.getDerivativeWithRespectTo(parameter)).getValues();
+				} finally {
+					RandomVariableDifferentiable.reverseSweepTileSize = 0;
+				}
+
+				assertEquals(sequential.length, tiled.length);
+				for (int i = 0; i < sequential.length; i++)
+					assertEquals(sequential[i], tiled[i], 1E-12 * Math.max(1.0, Math.abs(sequential[i])));
+			}
+	}
+
+	/*
+	 * The sequential reverse sweep reads only the values its adjoint rules need, so a leaf of a sum may have been
+	 * disposed of.
+	 */
+	@Test
+	void testReverseSweepWithDisposedLeaf() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable X = factory.fromArray(samples.clone());
+		RandomVariableDifferentiable sum = (RandomVariableDifferentiable)X.add(volatility.squared());
+		X.dispose();
+
+		double[] derivative = ((RandomVariable)sum.getDerivativeWithRespectTo(volatility)).getValues();
+		assertEquals(1, derivative.length);
+		assertEquals(0.6, derivative[0], 1E-15);
+	}
+
+	/*
+	 * Payoff using all fused operations, as a function of the forward rate, the volatility and the discount rate.
+	 */
+	private static RandomVariable getFusedPayoff(RandomVariableFactory factory, RandomVariable X, RandomVariable forwardRate,
+			RandomVariable volatility, RandomVariable rate) {
+		RandomVariable forward = X.mult(volatility).sub(volatility.squared().mult(.5)).exp().mult(forwardRate);
+		RandomVariable optionality = forward.add(-0.05).floor(0.0).cap(0.02).add(forward.add(-0.05).abs().mult(0.1));
+		RandomVariable digital = forward.div(0.05).log().div(volatility).normalCdf();
+		return optionality.multAdd(digital, forward.pow(1.5).add(X.mult(volatility).normalPdf()))
+				.discountContinuously(rate, 2.0);
+	}
+
+	/*
+	 * The fused operations agree with the equivalent chains of built-in operations, and their adjoints agree with
+	 * finite differences, also in the tiled reverse sweep.
+	 */
+	@Test
+	void testFusedOperations() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariable X = factory.fromArray(samples);
+		RandomVariable Y = X.mult(0.2).add(1.0);
+
+		assertEquals(Y.mult(X).add(Y).expectation().asFloatingPoint(), Y.multAdd(X, Y).expectation().asFloatingPoint(), 1E-15);
+		assertEquals(Y.log().mult(1.5).exp().expectation().asFloatingPoint(), Y.pow(1.5).expectation().asFloatingPoint(), 1E-12);
+		assertEquals(factory.fromConstant(0.03).mult(-2.0).exp().mult(X).expectation().asFloatingPoint(),
+				X.discountContinuously(factory.fromConstant(0.03), 2.0).expectation().asFloatingPoint(), 1E-15);
+		assertEquals(X.squared().sqrt().expectation().asFloatingPoint(), X.abs().expectation().asFloatingPoint(), 1E-15);
+		assertEquals(X.choose(X, factory.fromConstant(0.0)).expectation().asFloatingPoint() - X.floor(0.0).expectation().asFloatingPoint(),
+				0.0, 1E-3);
+		assertEquals(-X.mult(-1.0).floor(0.0).expectation().asFloatingPoint(), X.cap(0.0).expectation().asFloatingPoint(), 1E-15);
+		assertEquals(0.5, X.normalCdf().expectation().asFloatingPoint(), 1E-2);
+
+		double[] parameters = { 0.05, 0.3, 0.03 };
+		RandomVariableDifferentiable[] leaves = new RandomVariableDifferentiable[parameters.length];
+		for (int i = 0; i < parameters.length; i++)
+			leaves[i] = (RandomVariableDifferentiable)factory.fromConstant(parameters[i]);
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)getFusedPayoff(factory, X, leaves[0], leaves[1], leaves[2]).expectation();
+
+		RandomVariableFactory plain = RandomVariable.factory(false);
+		RandomVariable plainX = plain.fromArray(samples);
+		double shift = 1E-6;
+		for (int i = 0; i < parameters.length; i++) {
+			RandomVariable[] up = new RandomVariable[parameters.length], down = new RandomVariable[parameters.length];
+			for (int j = 0; j < parameters.length; j++) {
+				up[j] = plain.fromConstant(parameters[j] + (i == j ? shift : 0.));
+				down[j] = plain.fromConstant(parameters[j] - (i == j ? shift : 0.));
+			}
+			double finiteDifference = (getFusedPayoff(plain, plainX, up[0], up[1], up[2]).expectation().asFloatingPoint()
+					- getFusedPayoff(plain, plainX, down[0], down[1], down[2]).expectation().asFloatingPoint()) / (2 * shift);
+
+			value.derivatives = null;
+			double derivative = ((RandomVariable)value.getDerivativeWithRespectTo(leaves[i])).asFloatingPoint();
+			double tiledDerivative;
+			try {
+				RandomVariableDifferentiable.reverseSweepTileSize = 1000;
+				value.derivatives = null;
+				tiledDerivative = ((RandomVariable)value.getDerivativeWithRespectTo(leaves[i])).asFloatingPoint();
+			} finally {
+				RandomVariableDifferentiable.reverseSweepTileSize = 0;
+			}
+
+			assertEquals(finiteDifference, derivative, 1E-5 * Math.max(1.0, Math.abs(finiteDifference)));   // kinks of floor, cap and abs
+			assertEquals(derivative, tiledDerivative, 1E-12 * Math.max(1.0, Math.abs(derivative)));
+		}
+	}
+
+	/*
+	 * The fast precision tier changes the value and the AAD delta of the forward rate in arrears by far less than the
+	 * Monte Carlo error, and nodes keep their tier when their values are rematerialized.
+	 */
+	@Test
+	void testFastPrecision() {
+		double[] values = new double[2], deltas = new double[2];
+		for (RandomVariable.Precision precision : RandomVariable.Precision.values()) {
+			try {
+				RandomVariable.precision = precision;
+				RandomVariableFactory factory = RandomVariable.factory();
+				RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+				RandomVariable maturity = factory.fromConstant(2.0);
+				RandomVariable brownianMotion = factory.fromArray(samples).mult(maturity.sqrt());
+
+				RandomVariableDifferentiable value = (RandomVariableDifferentiable)new Assignment2Implementation()
+						.getMonteCarloBlackModelValueOfForwardRateInArrears(forwardRate, factory.fromConstant(0.9),
+								factory.fromConstant(0.3), brownianMotion, maturity, factory.fromConstant(0.5));
+				values[precision.ordinal()] = value.asFloatingPoint();
+				deltas[precision.ordinal()] = ((RandomVariable)value.getDerivativeWithRespectTo(forwardRate)).asFloatingPoint();
+
+				RandomVariable exp = brownianMotion.exp();
+				assertEquals(precision, exp.operationPrecision);
+				double[] expValues = exp.getValues().clone();
+				assertTrue(exp.releaseValues());
+				assertEquals(-1, Arrays.mismatch(expValues, exp.getValues()));
+			} finally {
+				RandomVariable.precision = RandomVariable.Precision.EXACT;
+			}
+		}
+
+		assertEquals(values[0], values[1], 1E-10 * Math.abs(values[0]));
+		assertEquals(deltas[0], deltas[1], 1E-10 * Math.abs(deltas[0]));
+	}
+
+	/*
+	 * The bulk gradient agrees with the derivatives of getDerivativeWithRespectTo, from a single sweep, for a
+	 * deterministic root as for the pathwise derivatives of a stochastic root, including unrelated inputs.
+	 */
+	@Test
+	void testGradient() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariableDifferentiable unrelated = (RandomVariableDifferentiable)factory.fromConstant(1.0);
+		RandomVariableDifferentiable X = (RandomVariableDifferentiable)factory.fromArray(samples);
+
+		RandomVariableDifferentiable payoff = (RandomVariableDifferentiable)X.mult(volatility).sub(volatility.squared().mult(.5)).exp()
+				.mult(forwardRate).add(-0.05).floor(0.0);
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)payoff.expectation();
+		RandomVariableDifferentiable[] inputs = { forwardRate, volatility, X, unrelated };
+
+		double[] gradient = value.getGradient(inputs);
+		Map<Long, RandomVariable> derivatives = value.derivatives;
+		double[][] pathwise = payoff.getPathwiseGradient(inputs);
+		assertSame(derivatives, value.derivatives);
+
+		for (int i = 0; i < inputs.length; i++) {
+			RandomVariable derivative = (RandomVariable)value.getDerivativeWithRespectTo(inputs[i]);
+			assertEquals(derivative.expectation().asFloatingPoint(), gradient[i], 1E-15);
+			assertEquals(-1, Arrays.mismatch(((RandomVariable)payoff.getDerivativeWithRespectTo(inputs[i])).getValues(), pathwise[i]));
+		}
+		assertEquals(samples.length, pathwise[1].length);
+		assertEquals(0.0, gradient[3]);
+		assertSame(derivatives, value.derivatives);
+	}
+
+	/*
+	 * The gradients of a strip of caplets sharing their samples and parameters from one vector reverse sweep agree with
+	 * the gradients of the caplets swept one by one, with scalar adjoints as with pathwise ones.
+	 */
+	@Test
+	void testVectorReverseMode() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(0.05);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariableDifferentiable X = (RandomVariableDifferentiable)factory.fromArray(samples);
+		RandomVariableDifferentiable[] inputs = { forwardRate, volatility, X };
+
+		RandomVariable forward = X.mult(volatility).sub(volatility.squared().mult(.5)).exp().mult(forwardRate);
+		RandomVariableDifferentiable[] values = new RandomVariableDifferentiable[20], payoffs = new RandomVariableDifferentiable[20];
+		for (int k = 0; k < values.length; k++) {
+			payoffs[k] = (RandomVariableDifferentiable)forward.add(-0.03 - 0.002 * k).floor(0.0).mult(0.5);
+			values[k] = (RandomVariableDifferentiable)payoffs[k].expectation();
+		}
+
+		for (RandomVariableDifferentiable[] roots : new RandomVariableDifferentiable[][] { values, payoffs }) {
+			double[][] gradients = RandomVariableDifferentiable.getGradients(roots, inputs);
+			for (int k = 0; k < roots.length; k++) {
+				double[] gradient = roots[k].getGradient(inputs);
+				for (int i = 0; i < inputs.length; i++)
+					assertEquals(gradient[i], gradients[k][i], 1E-12 * Math.max(1.0, Math.abs(gradient[i])));
+			}
+		}
+	}
+
+	private static RandomVariableDifferentiable getSmoothPayoff(RandomVariable a, RandomVariable b) {
+		RandomVariable X = RandomVariable.factory().fromArray(samples);
+		return (RandomVariableDifferentiable)X.mult(b).add(a).exp().mult(a.squared()).div(b.sqrt())
+				.add(b.log().mult(a)).add(X.mult(a).normalCdf().mult(b)).add(X.mult(b).normalPdf())
+				.discountContinuously(a, 2.0).multAdd(b, a).pow(1.5).expectation();
+	}
+
+	/*
+	 * Derivatives are plain values, which act as constants in further recorded operations: differentiating them again
+	 * does not give second derivatives, the Hessian does.
+	 */
+	@Test
+	void testDerivativesAreNotRecorded() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable x = (RandomVariableDifferentiable)factory.fromConstant(0.7);
+		RandomVariableDifferentiable cube = (RandomVariableDifferentiable)x.squared().mult(x);
+		RandomVariableDifferentiable pathwise = (RandomVariableDifferentiable)factory.fromArray(samples).mult(cube);
+
+		for (RandomVariableDifferentiable value : new RandomVariableDifferentiable[] { cube, pathwise }) {
+			RandomVariable derivative = (RandomVariable)value.getDerivativeWithRespectTo(x);
+			assertFalse(derivative instanceof RandomVariableDifferentiable);
+			assertNull(derivative.operation);
+			assertTrue(derivative.deps.isEmpty());
+		}
+
+		RandomVariable derivative = (RandomVariable)cube.getDerivativeWithRespectTo(x);
+		assertEquals(3 * 0.7 * 0.7, derivative.asFloatingPoint(), 1E-15);
+		RandomVariableDifferentiable product = (RandomVariableDifferentiable)derivative.mult(x);
+		assertEquals(derivative.asFloatingPoint(), ((RandomVariable)product.getDerivativeWithRespectTo(x)).asFloatingPoint(), 1E-15);
+		assertEquals(6 * 0.7, cube.getHessian(x)[0][0], 1E-12);
+	}
+
+	/*
+	 * The Hessian by forward-over-reverse agrees with central differences of the gradient, for a payoff combining
+	 * all smooth operations.
+	 */
+	@Test
+	void testHessian() {
+		RandomVariableFactory factory = RandomVariable.factory();
+		double[] point = { 0.2, 1.3 };
+		RandomVariableDifferentiable a = (RandomVariableDifferentiable)factory.fromConstant(point[0]);
+		RandomVariableDifferentiable b = (RandomVariableDifferentiable)factory.fromConstant(point[1]);
+		RandomVariableDifferentiable value = getSmoothPayoff(a, b);
+		double[][] hessian = value.getHessian(a, b);
+
+		double shift = 1E-5;
+		for (int j = 0; j < 2; j++) {
+			double[] up = point.clone(), down = point.clone();
+			up[j] += shift;
+			down[j] -= shift;
+			RandomVariableDifferentiable aUp = (RandomVariableDifferentiable)factory.fromConstant(up[0]);
+			RandomVariableDifferentiable bUp = (RandomVariableDifferentiable)factory.fromConstant(up[1]);
+			RandomVariableDifferentiable aDown = (RandomVariableDifferentiable)factory.fromConstant(down[0]);
+			RandomVariableDifferentiable bDown = (RandomVariableDifferentiable)factory.fromConstant(down[1]);
+			double[] gradientUp = getSmoothPayoff(aUp, bUp).getGradient(aUp, bUp);
+			double[] gradientDown = getSmoothPayoff(aDown, bDown).getGradient(aDown, bDown);
+			for (int i = 0; i < 2; i++) {
+				double finiteDifference = (gradientUp[i] - gradientDown[i]) / (2 * shift);
+				assertEquals(finiteDifference, hessian[i][j], 1E-6 * Math.max(1.0, Math.abs(finiteDifference)));
+			}
+		}
+		assertEquals(hessian[0][1], hessian[1][0], 1E-12 * Math.abs(hessian[0][1]));
+
+		double[] product = value.getHessianVectorProduct(new RandomVariableDifferentiable[] { a, b }, new double[] { 2.0, -1.0 });
+		for (int i = 0; i < 2; i++)
+			assertEquals(2.0 * hessian[i][0] - hessian[i][1], product[i], 1E-12 * Math.max(1.0, Math.abs(product[i])));
+	}
+
+	/*
+	 * The gamma of the digital caplet by the second order rule of choose() agrees with the gamma of the Black model,
+	 * for a call spread wide enough that the Monte Carlo error of the second order rule is small.
+	 */
+	@Test
+	void testDigitalCapletGamma() {
+		double hFactor = RandomVariable.hFactor;
+		try {
+			RandomVariable.hFactor = 0.2;
+			RandomVariableFactory factory = RandomVariable.factory();
+			double forward = 0.05, volatility = 0.3, maturity = 2.0, payoff = 0.9 * 0.5;
+			RandomVariableDifferentiable forwardRate = (RandomVariableDifferentiable)factory.fromConstant(forward);
+			RandomVariableDifferentiable value = (RandomVariableDifferentiable)new Assignment2Implementation().getMonteCarloBlackModelValueOfDigitalCaplet(
+					forwardRate, factory.fromConstant(0.9), factory.fromConstant(volatility), factory.fromArray(samples).mult(Math.sqrt(maturity)),
+					factory.fromConstant(forward), factory.fromConstant(maturity), factory.fromConstant(0.5));
+
+			double standardDeviation = volatility * Math.sqrt(maturity), d2 = -.5 * standardDeviation;   // at the money
+			double gamma = payoff * NormalDistribution.density(d2) / (forward * forward * standardDeviation) * (-d2 / standardDeviation - 1.);
+			assertEquals(gamma, value.getHessian(forwardRate)[0][0], 0.1 * Math.abs(gamma));
+		} finally {
+			RandomVariable.hFactor = hFactor;
+		}
+	}
+
+	/*
+	 * Random variables are passed to and from finmath-lib without copying their samples, and paths of finmath-lib
+	 * can be differentiated.
+	 */
+	@Test
+	void testFinmathAdapter() {
+		RandomVariableFromDoubleArray paths = new RandomVariableFromDoubleArray(2.0, samples.clone());
+		RandomVariableDifferentiable X = (RandomVariableDifferentiable)RandomVariable.factory().fromFinmath(paths);
+		assertSame(paths.getRealizations(), X.getValues());
+
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)RandomVariable.factory().fromConstant(0.3);
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)X.mult(volatility).exp().expectation();
+		assertEquals(X.mult(volatility).exp().mult(X).expectation().asFloatingPoint(), value.getGradient(volatility)[0], 1E-12);
+
+		RandomVariable payoff = RandomVariable.factory(false).fromFinmath(paths).exp();
+		RandomVariableFromDoubleArray result = payoff.toFinmath(2.0);
+		assertSame(payoff.getValues(), result.getRealizations());
+		assertEquals(2.0, result.getFiltrationTime());
+		assertEquals(payoff.expectation().asFloatingPoint(), result.getAverage(), 1E-12);
+
+		// values of recorded nodes are copied, as the node may release them
+		RandomVariable recorded = X.mult(volatility).exp();
+		RandomVariableFromDoubleArray copy = recorded.toFinmath(2.0);
+		assertNotSame(recorded.getValues(), copy.getRealizations());
+		double average = copy.getAverage();
+		assertTrue(recorded.releaseValues());
+		assertEquals(average, copy.getAverage());
+
+		RandomVariableFromDoubleArray constant = RandomVariable.factory(false).fromConstant(1.5).toFinmath(0.0);
+		assertTrue(constant.isDeterministic());
+		assertEquals(1.5, constant.doubleValue());
+	}
+
+	/*
+	 * Arrays shared with finmath-lib are neither modified in place nor recycled by dispose(), in either direction.
+	 */
+	@Test
+	void testFinmathAdapterOwnership() {
+		SampleBufferPool.clear();
+		RandomVariableFromDoubleArray paths = new RandomVariableFromDoubleArray(2.0, samples.clone());
+		RandomVariable X = RandomVariable.factory(false).fromFinmath(paths);
+		assertThrows(UnsupportedOperationException.class, () -> X.addAssign(1.0));
+		assertThrows(UnsupportedOperationException.class, () -> X.multAssign(X));
+		assertEquals(-1, Arrays.mismatch(samples, paths.getRealizations()));
+
+		X.dispose();
+		assertEquals(0, SampleBufferPool.size());
+
+		RandomVariable payoff = RandomVariable.factory(false).fromArray(samples).exp();
+		RandomVariableFromDoubleArray result = payoff.toFinmath(2.0);
+		double average = result.getAverage();
+		assertThrows(UnsupportedOperationException.class, () -> payoff.multAssign(2.0));
+
+		payoff.dispose();
+		assertEquals(0, SampleBufferPool.size());
+		payoff.getFactory().fromArray(samples).squared();
+		assertEquals(average, result.getAverage());
+	}
+
+	/*
+	 * Correlated normals have the sample correlations of the matrix, are reproducible, and can be differentiated as
+	 * other leaves.
+	 */
+	@Test
+	void testCorrelatedNormals() {
+		double[][] correlation = { { 1.0, 0.8, -0.3 }, { 0.8, 1.0, 0.1 }, { -0.3, 0.1, 1.0 } };
+		RandomVariable[] normals = RandomVariable.factory().fromCorrelatedNormals(correlation, 200000, 3413);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0.0, normals[i].expectation().asFloatingPoint(), 0.01);
+			for (int j = 0; j < 3; j++) {
+				double covariance = normals[i].mult(normals[j]).expectation().asFloatingPoint()
+						- normals[i].expectation().asFloatingPoint() * normals[j].expectation().asFloatingPoint();
+				assertEquals(correlation[i][j], covariance, 0.01);
+			}
+		}
+
+		RandomVariable[] again = RandomVariable.factory(false).fromCorrelatedNormals(correlation, 200000, 3413);
+		assertEquals(-1, Arrays.mismatch(normals[2].getValues(), again[2].getValues()));
+
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)normals[0].mult(normals[1]).expectation();
+		assertEquals(normals[1].expectation().asFloatingPoint(), value.getGradient((RandomVariableDifferentiable)normals[0])[0], 1E-12);
+
+		assertThrows(IllegalArgumentException.class,
+				() -> RandomVariable.factory().fromCorrelatedNormals(new double[][] { { 1.0, 1.2 }, { 1.2, 1.0 } }, 10, 3413));
+	}
+}
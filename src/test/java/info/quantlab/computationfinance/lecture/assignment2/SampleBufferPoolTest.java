@@ -0,0 +1,94 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SampleBufferPoolTest {
+
+	/*
+	 * The buffer of a disposed random variable is reused by the next operation of the same size.
+	 */
+	@Test
+	void testDispose() {
+		SampleBufferPool.clear();
+		RandomVariable X = RandomVariable.factory(false).fromArray(TestSamples.getNormals(3413, 10000));
+
+		RandomVariable Y = X.exp();
+		double[] buffer = Y.values;
+		Y.dispose();
+
+		RandomVariable Z = X.squared();
+		assertSame(buffer, Z.values);
+		assertEquals(X.mult(X).expectation().asFloatingPoint(), Z.expectation().asFloatingPoint(), 1E-12);
+		assertThrows(IllegalStateException.class, () -> Y.getValues());
+	}
+
+	/*
+	 * Disposing of a plain random variable read by a recorded operation keeps its values, as the reverse sweep needs them.
+	 */
+	@Test
+	void testDisposeRecordedOperand() {
+		SampleBufferPool.clear();
+		RandomVariable X = RandomVariable.factory(false).fromArray(TestSamples.getNormals(3413, 10000)).exp();
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)RandomVariable.factory().fromConstant(0.3);
+		RandomVariableDifferentiable value = (RandomVariableDifferentiable)X.mult(volatility).exp().expectation();
+
+		double[] buffer = X.values;
+		X.dispose();
+
+		assertSame(buffer, X.values);
+		assertEquals(0, SampleBufferPool.size());
+		assertEquals(X.mult(volatility.asFloatingPoint()).exp().mult(X).expectation().asFloatingPoint(),
+				((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Repeated recycling scopes reuse the buffers of the previous scope, including those of the released adjoints,
+	 * without changing the results.
+	 */
+	@Test
+	void testRecyclingTape() {
+		SampleBufferPool.clear();
+		RandomVariableFactory factory = RandomVariable.factory(false);
+		RandomVariable X = factory.fromArray(TestSamples.getNormals(3413, 10000));
+
+		double[] vegas = new double[3];
+		for (int iteration = 0; iteration < vegas.length; iteration++) {
+			try (RandomVariableTape tape = RandomVariableTape.open(true)) {
+				RandomVariableDifferentiable volatility = tape.input(factory.fromConstant(0.3));
+				RandomVariableDifferentiable value = (RandomVariableDifferentiable)X.mult(volatility).exp().add(-1.0).squared().expectation();
+				vegas[iteration] = ((RandomVariable)value.getDerivativeWithRespectTo(volatility)).asFloatingPoint();
+			}
+			assertTrue(SampleBufferPool.size() > 0);
+		}
+
+		assertEquals(vegas[0], vegas[1], 1E-12);
+		assertEquals(vegas[0], vegas[2], 1E-12);
+	}
+
+	/*
+	 * A recycling scope returns the buffers of the derivatives computed on its nodes, except for those kept.
+	 */
+	@Test
+	void testRecyclingTapeDerivatives() {
+		SampleBufferPool.clear();
+		RandomVariableFactory factory = RandomVariable.factory(false);
+		RandomVariable X = factory.fromArray(TestSamples.getNormals(3413, 10000));
+
+		RandomVariable kept, recycled;
+		try (RandomVariableTape tape = RandomVariableTape.open(true)) {
+			RandomVariableDifferentiable Y = tape.input(X), Z = tape.input(X.add(1.0));
+			RandomVariableDifferentiable value = (RandomVariableDifferentiable)Y.mult(Z).exp();
+			kept = (RandomVariable)value.getDerivativeWithRespectTo(Y);
+			recycled = (RandomVariable)value.getDerivativeWithRespectTo(Z);
+			tape.keep(kept);
+		}
+
+		assertEquals(X.add(1.0).mult(X.mult(X.add(1.0)).exp()).expectation().asFloatingPoint(), kept.expectation().asFloatingPoint(), 1E-12);
+		assertThrows(IllegalStateException.class, () -> recycled.getValues());
+	}
+}
@@ -0,0 +1,163 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ShardedMonteCarloTest {
+
+	/*
+	 * Lognormal forward with initial value parameters[0] and volatility parameters[1] at maturity 2.
+	 */
+	static class Forward implements MonteCarloTask {
+		@Override
+		public RandomVariable getValue(RandomVariable normals, RandomVariableDifferentiable[] parameters) {
+			double maturity = 2.0;
+			RandomVariable volatility = parameters[1];
+			return normals.mult(volatility.mult(Math.sqrt(maturity))).sub(volatility.squared().mult(.5 * maturity)).exp()
+					.mult(parameters[0]);
+		}
+	}
+
+	/*
+	 * Worker processes reproduce the in-process run, which in turn reproduces the valuation of all paths at once.
+	 */
+	@Test
+	void testShardedRun() {
+		int numberOfPaths = 100000, blockSize = 30000;
+		ShardedMonteCarlo monteCarlo = new ShardedMonteCarlo(Forward.class, 3413, numberOfPaths, blockSize, 1.0, 0.3);
+
+		MonteCarloAccumulator local = monteCarlo.run();
+		MonteCarloAccumulator sharded = monteCarlo.run(2);
+
+		assertEquals(numberOfPaths, sharded.getNumberOfPaths());
+		assertEquals(local.expectation().asFloatingPoint(), sharded.expectation().asFloatingPoint(), 1E-12);
+		assertEquals(local.sampleError().asFloatingPoint(), sharded.sampleError().asFloatingPoint(), 1E-12);
+		for (int i = 0; i < 2; i++)
+			assertEquals(local.getDerivativeWithRespectTo(i).asFloatingPoint(), sharded.getDerivativeWithRespectTo(i).asFloatingPoint(), 1E-12);
+
+		double[] normals = new double[numberOfPaths];
+		for (int block = 0; block < monteCarlo.getNumberOfBlocks(); block++) {
+			Random random = new Random(ShardedMonteCarlo.getSubstreamSeed(3413, block));
+			for (int path = block * blockSize; path < Math.min(numberOfPaths, (block + 1) * blockSize); path++)
+				normals[path] = random.nextGaussian();
+		}
+
+		RandomVariableFactory factory = RandomVariable.factory();
+		RandomVariableDifferentiable initialValue = (RandomVariableDifferentiable)factory.fromConstant(1.0);
+		RandomVariableDifferentiable volatility = (RandomVariableDifferentiable)factory.fromConstant(0.3);
+		RandomVariable value = new Forward().getValue(factory.fromArray(normals), new RandomVariableDifferentiable[] { initialValue, volatility });
+		RandomVariableDifferentiable expectation = (RandomVariableDifferentiable)value.expectation();
+
+		assertEquals(expectation.asFloatingPoint(), local.expectation().asFloatingPoint(), 1E-12);
+		assertEquals(value.sampleError().asFloatingPoint(), local.sampleError().asFloatingPoint(), 1E-12);
+		assertEquals(((RandomVariable)expectation.getDerivativeWithRespectTo(initialValue)).asFloatingPoint(),
+				local.getDerivativeWithRespectTo(0).asFloatingPoint(), 1E-12);
+		assertEquals(((RandomVariable)expectation.getDerivativeWithRespectTo(volatility)).asFloatingPoint(),
+				local.getDerivativeWithRespectTo(1).asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * Forward, writing to System.out, last without terminating the line.
+	 */
+	static class ChattyForward extends Forward {
+		@Override
+		public RandomVariable getValue(RandomVariable normals, RandomVariableDifferentiable[] parameters) {
+			System.out.println("Valuing a block");
+			System.out.print("1 2 3");
+			return super.getValue(normals, parameters);
+		}
+	}
+
+	/*
+	 * Output of the task in the worker processes is not taken for their results.
+	 */
+	@Test
+	void testShardedRunWithOutput() {
+		MonteCarloAccumulator local = new ShardedMonteCarlo(Forward.class, 3413, 10000, 3000, 1.0, 0.3).run();
+		MonteCarloAccumulator sharded = new ShardedMonteCarlo(ChattyForward.class, 3413, 10000, 3000, 1.0, 0.3).run(2);
+
+		assertEquals(local.getNumberOfPaths(), sharded.getNumberOfPaths());
+		assertEquals(local.expectation().asFloatingPoint(), sharded.expectation().asFloatingPoint(), 1E-12);
+		for (int i = 0; i < 2; i++)
+			assertEquals(local.getDerivativeWithRespectTo(i).asFloatingPoint(), sharded.getDerivativeWithRespectTo(i).asFloatingPoint(), 1E-12);
+	}
+
+	/*
+	 * An encoded accumulator is restored exactly, and lines of another encoding or number of parameters are rejected.
+	 */
+	@Test
+	void testEncoding() {
+		MonteCarloAccumulator accumulator = new ShardedMonteCarlo(Forward.class, 3413, 1000, 300, 1.0, 0.3).run();
+		String line = accumulator.encode();
+
+		assertEquals(line, MonteCarloAccumulator.decode(line, 2).encode());
+		assertThrows(IllegalArgumentException.class, () -> MonteCarloAccumulator.decode(line, 3));
+		assertThrows(IllegalArgumentException.class, () -> MonteCarloAccumulator.decode(line, 1));
+		assertThrows(IllegalArgumentException.class, () -> MonteCarloAccumulator.decode(line.substring(line.indexOf(' ') + 1), 2));
+		assertThrows(IllegalArgumentException.class, () -> MonteCarloAccumulator.decode(line.substring(0, line.lastIndexOf(' ')), 2));
+		assertThrows(IllegalArgumentException.class, () -> MonteCarloAccumulator.decode("Picked up JAVA_TOOL_OPTIONS: -Xmx1g", 2));
+	}
+
+	/*
+	 * Forward, failing once a given number of blocks has been valued, to simulate a crash.
+	 */
+	static class CrashingForward extends Forward {
+		static int blocksUntilCrash = -1;
+		static int blocks = 0;
+
+		@Override
+		public RandomVariable getValue(RandomVariable normals, RandomVariableDifferentiable[] parameters) {
+			if (blocksUntilCrash-- == 0)
+				throw new IllegalStateException("Simulated crash");
+			blocks++;
+			return super.getValue(normals, parameters);
+		}
+	}
+
+	/*
+	 * A run resumed from the checkpoint written before a crash gives the same results as an uninterrupted run, while
+	 * checkpoints of other runs and non-positive checkpoint intervals are rejected.
+	 */
+	@Test
+	void testCheckpointAndResume() throws IOException {
+		ShardedMonteCarlo monteCarlo = new ShardedMonteCarlo(CrashingForward.class, 3413, 100000, 10000, 1.0, 0.3);
+		MonteCarloAccumulator uninterrupted = monteCarlo.run();
+
+		Path checkpoint = Files.createTempDirectory("checkpoint").resolve("run.properties");
+		try {
+			assertThrows(IllegalArgumentException.class, () -> monteCarlo.run(checkpoint, 0));
+			assertThrows(IllegalArgumentException.class, () -> monteCarlo.run(checkpoint, -1));
+			assertFalse(Files.exists(checkpoint));
+
+			CrashingForward.blocksUntilCrash = 4;
+			assertThrows(IllegalStateException.class, () -> monteCarlo.run(checkpoint, 2));
+			assertTrue(Files.exists(checkpoint));
+
+			CrashingForward.blocksUntilCrash = -1;
+			CrashingForward.blocks = 0;
+			MonteCarloAccumulator resumed = monteCarlo.run(checkpoint, 2);
+
+			assertEquals(monteCarlo.getNumberOfBlocks() - 4, CrashingForward.blocks);
+			assertEquals(uninterrupted.encode(), resumed.encode());
+			assertEquals(uninterrupted.encode(), monteCarlo.run(checkpoint, 2).encode());   // completed run
+			assertThrows(IllegalArgumentException.class,
+					() -> new ShardedMonteCarlo(CrashingForward.class, 1234, 100000, 10000, 1.0, 0.3).run(checkpoint, 2));
+			assertThrows(IllegalArgumentException.class,
+					() -> new ShardedMonteCarlo(CrashingForward.class, 3413, 200000, 10000, 1.0, 0.3).run(checkpoint, 2));
+			assertThrows(IllegalArgumentException.class,
+					() -> new ShardedMonteCarlo(CrashingForward.class, 3413, 100000, 20000, 1.0, 0.3).run(checkpoint, 2));
+		} finally {
+			Files.deleteIfExists(checkpoint);
+			Files.delete(checkpoint.getParent());
+		}
+	}
+}
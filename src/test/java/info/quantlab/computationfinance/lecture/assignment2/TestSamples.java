@@ -0,0 +1,23 @@
+package info.quantlab.computationfinance.lecture.assignment2;
+
+import java.util.Random;
+
+/*
+ * Sample fixtures shared by the tests.
+ */
+final class TestSamples {
+
+	private TestSamples() {
+	}
+
+	/*
+	 * Independent standard normal samples, reproducible by the seed.
+	 */
+	static double[] getNormals(long seed, int numberOfPaths) {
+		Random random = new Random(seed);
+		double[] samples = new double[numberOfPaths];
+		for(int pathIndex=0; pathIndex<numberOfPaths; pathIndex++)
+			samples[pathIndex] = random.nextGaussian();
+		return samples;
+	}
+}